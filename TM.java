@@ -1,72 +1,928 @@
+package tasktracker;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.time.Duration;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.IsoFields;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
 import java.time.Instant;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
 import java.util.function.Function;
-import java.util.function.Predicate;
 import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
 
 public class TM {
     public static void main(String[] args){
-        final String logFilePath = "task-manager.log";
-        TaskLogger logger = new Logger(logFilePath);
-        TaskLogParser logParser = new LogParser(logFilePath);
-        TaskExecutor taskExecutor = new TaskExecutor(logger, logParser);
+        Instant entered = Instant.now();
+        LaunchOptions options = new LaunchOptions(args);
+        TaskStore store = new TaskStore(options.get("log",
+                options.has("binary") ? "task-manager"
+                        + BinaryLogFile.EXTENSION : options.has("indexed") ?
+                        "task-manager" + IndexedLogFile.EXTENSION :
+                        "task-manager.log"));
+        String project = options.get("project", null);
+        String user = options.get("user", null);
+        String[] commandArgs = options.getCommandArgs();
+        boolean allProjects = CommandParser.isAllProjects(commandArgs);
+        final String logFilePath;
+        try {
+            if (allProjects && project != null) {
+                throw new IllegalArgumentException("--project cannot be "
+                        + "combined with summary --all-projects");
+            }
+            Path shard = allProjects ? store.shard(null, null) :
+                    store.shard(project, user);
+            if (shard.getParent() != null) {
+                Files.createDirectories(shard.getParent());
+            }
+            logFilePath = shard.toString();
+        } catch (IllegalArgumentException | IOException e) {
+            System.err.println("Error opening task store: " + e.getMessage());
+            return;
+        }
+        boolean serve = commandArgs.length > 0
+                && commandArgs[0].equalsIgnoreCase("serve");
+        boolean stats = options.has("stats");
+        String metricsFile = options.get("metrics-file", null);
+        // Case: the daemon reports the stats of the request it ran
+        String[] request = CommandParser.withAbsolutePaths(commandArgs);
+        if (!serve && !options.has("no-daemon")
+                && !CommandParser.isLocal(commandArgs)
+                && DaemonClient.forward(
+                TaskDaemon.socketPath(logFilePath), stats ?
+                        TaskDaemon.withStats(request) : request)) {
+            return;
+        }
+        if (stats || metricsFile != null) {
+            Metrics.recordJvmStart(entered);
+        }
+
+        ValidationMode mode = CommandParser.isReadOnly(commandArgs) ?
+                ValidationMode.REPORT : ValidationMode.REPAIR;
+        TaskLogger logger;
+        Function<ValidationMode, TaskLogParser> parsers;
+        Durability durability = Durability.parse(options.get("durability",
+                "none"));
+        if (BinaryLogFile.isBinary(logFilePath)) {
+            BinaryLogFile logFile = new BinaryLogFile(Paths.get(logFilePath));
+            logFile.setDurability(durability);
+            logger = new BinaryLogger(logFile);
+            parsers = m -> new BinaryLogParser(logFile, m);
+        } else if (IndexedLogFile.isIndexed(logFilePath)) {
+            IndexedLogFile logFile = new IndexedLogFile(
+                    Paths.get(logFilePath));
+            logFile.setDurability(durability);
+            logger = new IndexedLogger(logFile);
+            parsers = m -> new IndexedLogParser(logFile);
+        } else {
+            boolean parallel = options.has("parallel");
+            RolloverPolicy rollover = RolloverPolicy.parse(
+                    options.get("rollover-size", null),
+                    options.get("rollover-age", null));
+            logger = new Logger(logFilePath, serve, durability, rollover);
+            parsers = m -> new LogParser(logFilePath, m, parallel);
+        }
+
+        // Case: a rollup replays every shard, read only
+        if (allProjects) {
+            boolean parallel = options.has("parallel");
+            try {
+                TaskLogParser rollup = new ShardedLogParser(
+                        store.rollupShards(user), path ->
+                        BinaryLogFile.isBinary(path.toString()) ?
+                                new BinaryLogParser(new BinaryLogFile(path),
+                                        ValidationMode.REPORT) :
+                        IndexedLogFile.isIndexed(path.toString()) ?
+                                new IndexedLogParser(
+                                        new IndexedLogFile(path)) :
+                                new LogParser(path.toString(),
+                                        ValidationMode.REPORT, parallel));
+                parsers = m -> rollup;
+            } catch (IOException e) {
+                System.err.println("Error listing projects: "
+                        + e.getMessage());
+                return;
+            }
+        }
+
+        if (serve) {
+            try {
+                TaskDaemon daemon = new TaskDaemon(Paths.get(logFilePath),
+                        logger, parsers);
+                if (metricsFile != null) {
+                    daemon.setMetricsFile(Paths.get(metricsFile));
+                }
+                daemon.setConcurrent(options.has("concurrent"));
+                daemon.serve();
+            } catch (IOException e) {
+                System.err.println("Error running daemon: "
+                        + e.getMessage());
+            }
+            return;
+        }
 
-        CommandParser commandParser = new CommandParser(taskExecutor);
+        Metrics.CommandTimer timer = Metrics.command(commandArgs);
+        TaskLogParser parser = parsers.apply(mode);
+        TaskExecutor taskExecutor = new TaskExecutor(logger, parser,
+                !CommandParser.isStreaming(commandArgs) && !parser.hasIndex());
+
+        CommandParser commandParser = new CommandParser(taskExecutor,
+                Paths.get(logFilePath));
         try {
-            commandParser.parseThenExecute(args);
+            commandParser.parseThenExecute(commandArgs);
         }   catch (Exception e) {
             System.err.println(e.getMessage());
         }
+        timer.close();
+        if (stats) {
+            System.err.print(timer.stats(true));
+        }
+        if (metricsFile != null) {
+            Metrics.writeTo(Paths.get(metricsFile));
+        }
+    }
+}
+
+// Runs the common commands against a scratch log in one JVM, so a class
+// data sharing archive dumped when it exits holds the classes they load.
+// bin/tm runs it with -XX:ArchiveClassesAtExit.
+class StartupTraining {
+    private static final String[][] COMMANDS = {
+            {"start", "training"},
+            {"describe", "training", "class", "data", "sharing", "M"},
+            {"stop", "training"},
+            {"size", "training", "L"},
+            {"summary"},
+            {"summary", "training"},
+            {"summary", "L", "--sorted", "--format=csv"},
+            {"summary", "--by=day", "--format=json"},
+            {"summary", "training", "--stream"},
+            {"search", "sharing"},
+            {"rename", "training", "trained"},
+            {"delete", "trained"},
+            {"metrics"}
+    };
+
+    public static void main(String[] args) throws IOException {
+        Path dir = Files.createTempDirectory("tm-training");
+        String log = "--log=" + dir.resolve("task-manager.log");
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+        PrintStream discard = new PrintStream(
+                OutputStream.nullOutputStream());
+        System.setOut(discard);
+        System.setErr(discard);
+        try {
+            for (String[] command : COMMANDS) {
+                String[] launch = new String[command.length + 2];
+                launch[0] = "--no-daemon";
+                launch[1] = log;
+                System.arraycopy(command, 0, launch, 2, command.length);
+                TM.main(launch);
+            }
+        } finally {
+            System.setOut(out);
+            System.setErr(err);
+            try (DirectoryStream<Path> files =
+                         Files.newDirectoryStream(dir)) {
+                for (Path file : files) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(dir);
+        }
+    }
+}
+
+// Global flags given before the command, e.g. --parallel or --name=value
+class LaunchOptions {
+    private final Map<String, String> flags;
+    private final String[] commandArgs;
+
+    public LaunchOptions(String[] args) {
+        this.flags = new HashMap<>();
+        int i = 0;
+        while (i < args.length && args[i].startsWith("--")) {
+            String flag = args[i].substring(2);
+            int equals = flag.indexOf('=');
+            if (equals >= 0) {
+                flags.put(flag.substring(0, equals).toLowerCase(Locale.ROOT),
+                        flag.substring(equals + 1));
+            } else {
+                flags.put(flag.toLowerCase(Locale.ROOT), "true");
+            }
+            i++;
+        }
+        this.commandArgs = Arrays.copyOfRange(args, i, args.length);
+    }
+
+    public boolean has(String flag) {
+        return flags.containsKey(flag);
+    }
+
+    public String get(String flag, String defaultValue) {
+        return flags.getOrDefault(flag, defaultValue);
+    }
+
+    public String[] getCommandArgs() {
+        return commandArgs;
+    }
+}
+
+// Where a project's or a user's tasks live. Each shard is an ordinary log,
+// with its own snapshot, lock, segments and daemon socket, kept next to the
+// base log as projects/<project>/[users/<user>/]<log name> or
+// users/<user>/<log name>, so a command only replays the shard it names.
+class TaskStore {
+    private static final String PROJECTS = "projects";
+    private static final String USERS = "users";
+    // Rollup prefix of the shards outside any project
+    private static final String NO_PROJECT = "-";
+
+    private final Path base;
+
+    public TaskStore(String logFilePath) {
+        this.base = Paths.get(logFilePath);
+    }
+
+    // The base log when neither is given
+    public Path shard(String project, String user) {
+        Path dir = base.resolveSibling(PROJECTS);
+        if (project != null) {
+            dir = dir.resolve(checkName("project", project));
+        } else if (user != null) {
+            dir = base.resolveSibling(USERS);
+        } else {
+            return base;
+        }
+        if (user != null) {
+            dir = (project != null ? dir.resolve(USERS) : dir)
+                    .resolve(checkName("user", user));
+        }
+        return dir.resolve(base.getFileName());
+    }
+
+    // Every shard keyed by the prefix its tasks get in a rollup: project
+    // and project/user, and - and -/user for the default log and the
+    // shards of users outside any project ('-' cannot start a project
+    // name). Given a user, only that user's shards, keyed by project or -.
+    public Map<String, Path> rollupShards(String user) throws IOException {
+        Map<String, Path> shards = new TreeMap<>();
+        if (user != null) {
+            addShard(shards, NO_PROJECT, base.resolveSibling(USERS)
+                    .resolve(checkName("user", user)));
+        } else {
+            addShard(shards, NO_PROJECT, base.getParent() == null ?
+                    Paths.get("") : base.getParent());
+            addUserShards(shards, NO_PROJECT, base.resolveSibling(USERS));
+        }
+        Path projects = base.resolveSibling(PROJECTS);
+        if (!Files.isDirectory(projects)) {
+            return shards;
+        }
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(projects,
+                Files::isDirectory)) {
+            for (Path dir : dirs) {
+                String project = dir.getFileName().toString();
+                if (user != null) {
+                    addShard(shards, project, dir.resolve(USERS)
+                            .resolve(user.toLowerCase(Locale.ROOT)));
+                    continue;
+                }
+                addShard(shards, project, dir);
+                addUserShards(shards, project, dir.resolve(USERS));
+            }
+        }
+        return shards;
+    }
+
+    private void addUserShards(Map<String, Path> shards, String prefix,
+                               Path users) throws IOException {
+        if (!Files.isDirectory(users)) {
+            return;
+        }
+        try (DirectoryStream<Path> userDirs = Files.newDirectoryStream(users,
+                Files::isDirectory)) {
+            for (Path userDir : userDirs) {
+                addShard(shards, prefix + "/" + userDir.getFileName(),
+                        userDir);
+            }
+        }
+    }
+
+    private void addShard(Map<String, Path> shards, String prefix,
+                          Path dir) {
+        Path log = dir.resolve(base.getFileName());
+        if (Files.exists(log)) {
+            shards.put(prefix, log);
+        }
+    }
+
+    // Names become directories, lowercased like task names
+    private static String checkName(String kind, String name) {
+        if (!name.matches("[A-Za-z0-9][A-Za-z0-9._-]*")) {
+            throw new IllegalArgumentException("Invalid " + kind + " name: "
+                    + name + ", use letters, digits, '.', '_' and '-'");
+        }
+        return name.toLowerCase(Locale.ROOT);
+    }
+}
+
+// Replays the shards of a rollup in parallel, each task named after its
+// shard, e.g. website/deploy
+class ShardedLogParser implements TaskLogParser {
+    private final Map<String, Path> shards;
+    private final Function<Path, TaskLogParser> parsers;
+
+    public ShardedLogParser(Map<String, Path> shards,
+                            Function<Path, TaskLogParser> parsers) {
+        this.shards = shards;
+        this.parsers = parsers;
+    }
+
+    public Map<String, Task> parseLogFile() {
+        List<Map<String, Task>> replayed = shards.entrySet()
+                .parallelStream()
+                .map(shard -> qualify(shard.getKey(),
+                        parsers.apply(shard.getValue()).parseLogFile()))
+                .collect(Collectors.toList());
+        Map<String, Task> taskMap = new HashMap<>();
+        for (Map<String, Task> tasks : replayed) {
+            taskMap.putAll(tasks);
+        }
+        return taskMap;
+    }
+
+    private static Map<String, Task> qualify(String prefix,
+                                             Map<String, Task> tasks) {
+        Map<String, Task> qualified = new HashMap<>();
+        for (Task task : tasks.values()) {
+            task.setName(prefix + "/" + task.getName());
+            qualified.put(task.getName(), task);
+        }
+        return qualified;
+    }
+}
+
+// Per-phase timers and counters of this process, printed by --stats,
+// committed as JFR events and exported in Prometheus text format. Each
+// command also counts into a scope of its own, so the requests of a
+// concurrent daemon report only what they did.
+final class Metrics {
+    enum Counter {
+        LINES_PARSED("lines_parsed", "Log lines and binary records read"),
+        MALFORMED_LINES("malformed_lines", "Malformed log lines found"),
+        LINES_REMOVED("lines_removed",
+                "Malformed log lines removed from the log"),
+        BYTES_READ("bytes_read", "Bytes read from logs and snapshots"),
+        BYTES_WRITTEN("bytes_written", "Bytes written to logs and snapshots"),
+        TASKS_LOADED("tasks_loaded", "Tasks built by log replays");
+
+        final String key;
+        final String help;
+
+        Counter(String key, String help) {
+            this.key = key;
+            this.help = help;
+        }
+    }
+
+    // Parse includes the repair and snapshot it triggers
+    enum Phase {
+        PARSE, REPAIR, SNAPSHOT, APPEND, RENDER;
+
+        String key() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    // Upper bounds of the latency buckets
+    private static final long[] BUCKET_NANOS = {1_000_000L, 5_000_000L,
+            10_000_000L, 50_000_000L, 100_000_000L, 500_000_000L,
+            1_000_000_000L, 5_000_000_000L, 10_000_000_000L};
+    private static final String[] BUCKET_LABELS = {"0.001", "0.005",
+            "0.01", "0.05", "0.1", "0.5", "1", "5", "10"};
+    // Known commands, anything else is labelled other
+    private static final Set<String> COMMANDS = Set.of("start", "stop",
+            "describe", "size", "rename", "delete", "summary", "search",
+            "export", "import", "compact", "metrics", "shutdown", "batch");
+
+    private static final AtomicLongArray COUNTERS = new AtomicLongArray(
+            Counter.values().length);
+    private static final Histogram[] PHASES =
+            new Histogram[Phase.values().length];
+    private static final Map<String, Histogram> COMMAND_TIMES =
+            new ConcurrentSkipListMap<>();
+    private static final ThreadLocal<Scope> SCOPE = new ThreadLocal<>();
+    private static volatile long jvmStartNanos = -1;
+
+    static {
+        for (int i = 0; i < PHASES.length; i++) {
+            PHASES[i] = new Histogram();
+        }
+    }
+
+    private Metrics() {}
+
+    public static void add(Counter counter, long delta) {
+        COUNTERS.addAndGet(counter.ordinal(), delta);
+        Scope scope = SCOPE.get();
+        if (scope != null) {
+            scope.counters.addAndGet(counter.ordinal(), delta);
+        }
+    }
+
+    // The command this thread works for, null outside of one
+    public static Scope scope() {
+        return SCOPE.get();
+    }
+
+    // Runs action on this thread on behalf of the command scope belongs
+    // to, e.g. on a worker thread of a parallel replay
+    public static void within(Scope scope, Runnable action) {
+        Scope previous = SCOPE.get();
+        SCOPE.set(scope);
+        try {
+            action.run();
+        } finally {
+            SCOPE.set(previous);
+        }
+    }
+
+    // Runs work done once for several commands, such as a commit they
+    // share, and counts it towards each of them
+    public static void withinAll(Collection<Scope> scopes, Runnable action) {
+        Scope shared = new Scope();
+        within(shared, action);
+        for (Scope scope : scopes) {
+            if (scope != null) {
+                scope.addAll(shared);
+            }
+        }
+    }
+
+    public static long get(Counter counter) {
+        return COUNTERS.get(counter.ordinal());
+    }
+
+    // Time from process start to main, when the OS reports it
+    public static void recordJvmStart(Instant mainEntered) {
+        ProcessHandle.current().info().startInstant().ifPresent(start ->
+                jvmStartNanos = Duration.between(start, mainEntered)
+                        .toNanos());
+    }
+
+    public static Timer time(Phase phase) {
+        return new Timer(PHASES[phase.ordinal()], phase.ordinal(),
+                recording() ? new PhaseEvent(phase.key()) : null);
+    }
+
+    // Event classes are only loaded while JFR records, defining the first
+    // one takes longer than a short command
+    private static boolean recording() {
+        return FlightRecorder.isInitialized();
+    }
+
+    public static CommandTimer command(String[] args) {
+        String name = args.length == 0 ? "none" :
+                args[0].toLowerCase(Locale.ROOT);
+        if (!COMMANDS.contains(name)) {
+            name = "other";
+        }
+        return new CommandTimer(name, COMMAND_TIMES.computeIfAbsent(name,
+                n -> new Histogram()));
+    }
+
+    public static String prometheus() {
+        StringBuilder out = new StringBuilder();
+        for (Counter counter : Counter.values()) {
+            String metric = "tasktracker_" + counter.key + "_total";
+            header(out, metric, counter.help, "counter");
+            out.append(metric).append(' ').append(get(counter))
+                    .append('\n');
+        }
+        header(out, "tasktracker_phase_seconds",
+                "Time spent in each phase of a command", "histogram");
+        for (Phase phase : Phase.values()) {
+            PHASES[phase.ordinal()].write(out, "tasktracker_phase_seconds",
+                    "phase", phase.key());
+        }
+        header(out, "tasktracker_command_seconds",
+                "Time to run a command, from parse to output", "histogram");
+        COMMAND_TIMES.forEach((name, histogram) -> histogram.write(out,
+                "tasktracker_command_seconds", "command", name));
+        if (jvmStartNanos >= 0) {
+            header(out, "tasktracker_jvm_start_seconds",
+                    "Time from process start to main", "gauge");
+            out.append("tasktracker_jvm_start_seconds ")
+                    .append(seconds(jvmStartNanos)).append('\n');
+        }
+        return out.toString();
+    }
+
+    // Replaces the file atomically, so a scraper never reads half of it
+    public static void writeTo(Path path) {
+        try {
+            Path temp = Files.createTempFile(path.toAbsolutePath()
+                    .getParent(), path.getFileName().toString(), ".tmp");
+            Files.write(temp, prometheus().getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Error writing metrics: " + e.getMessage());
+        }
+    }
+
+    private static void header(StringBuilder out, String metric,
+                               String help, String type) {
+        out.append("# HELP ").append(metric).append(' ').append(help)
+                .append('\n');
+        out.append("# TYPE ").append(metric).append(' ').append(type)
+                .append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.1f ms", nanos / 1e6);
+    }
+
+    // What one command added to each counter and phase
+    static final class Scope {
+        private final AtomicLongArray counters = new AtomicLongArray(
+                Counter.values().length);
+        private final AtomicLongArray phaseNanos = new AtomicLongArray(
+                Phase.values().length);
+        private final AtomicLongArray phaseCounts = new AtomicLongArray(
+                Phase.values().length);
+
+        void record(int phase, long nanos) {
+            phaseNanos.addAndGet(phase, nanos);
+            phaseCounts.incrementAndGet(phase);
+        }
+
+        void addAll(Scope other) {
+            for (int i = 0; i < counters.length(); i++) {
+                counters.addAndGet(i, other.counters.get(i));
+            }
+            for (int i = 0; i < phaseNanos.length(); i++) {
+                phaseNanos.addAndGet(i, other.phaseNanos.get(i));
+                phaseCounts.addAndGet(i, other.phaseCounts.get(i));
+            }
+        }
+
+        long get(Counter counter) {
+            return counters.get(counter.ordinal());
+        }
+    }
+
+    private static final class Histogram {
+        final AtomicLongArray buckets = new AtomicLongArray(
+                BUCKET_NANOS.length);
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong nanos = new AtomicLong();
+
+        void record(long elapsed) {
+            int bucket = 0;
+            while (bucket < BUCKET_NANOS.length
+                    && elapsed > BUCKET_NANOS[bucket]) {
+                bucket++;
+            }
+            if (bucket < BUCKET_NANOS.length) {
+                buckets.incrementAndGet(bucket);
+            }
+            nanos.addAndGet(elapsed);
+            count.incrementAndGet();
+        }
+
+        void write(StringBuilder out, String metric, String label,
+                   String value) {
+            String labels = label + "=\"" + value + "\"";
+            long cumulative = 0;
+            for (int i = 0; i < BUCKET_NANOS.length; i++) {
+                cumulative += buckets.get(i);
+                out.append(metric).append("_bucket{").append(labels)
+                        .append(",le=\"").append(BUCKET_LABELS[i])
+                        .append("\"} ").append(cumulative).append('\n');
+            }
+            out.append(metric).append("_bucket{").append(labels)
+                    .append(",le=\"+Inf\"} ").append(count.get())
+                    .append('\n');
+            out.append(metric).append("_sum{").append(labels).append("} ")
+                    .append(seconds(nanos.get())).append('\n');
+            out.append(metric).append("_count{").append(labels)
+                    .append("} ").append(count.get()).append('\n');
+        }
+    }
+
+    static class Timer implements AutoCloseable {
+        private final Histogram histogram;
+        // Phase ordinal, -1 for a command
+        private final int phase;
+        private final Scope scope;
+        private final Event event;
+        private final long start;
+        private long elapsed = -1;
+
+        Timer(Histogram histogram, int phase, Event event) {
+            this.histogram = histogram;
+            this.phase = phase;
+            this.scope = SCOPE.get();
+            this.event = event;
+            if (event != null) {
+                event.begin();
+            }
+            this.start = System.nanoTime();
+        }
+
+        @Override
+        public void close() {
+            if (elapsed >= 0) {
+                return;
+            }
+            elapsed = System.nanoTime() - start;
+            histogram.record(elapsed);
+            if (scope != null && phase >= 0) {
+                scope.record(phase, elapsed);
+            }
+            if (event != null) {
+                event.commit();
+            }
+        }
+    }
+
+    // Times a whole command and counts into its own scope until closed,
+    // on the thread that created it
+    static class CommandTimer extends Timer {
+        private final String name;
+        private final CommandEvent event;
+        private final Scope counted;
+        private final Scope outer;
+
+        CommandTimer(String name, Histogram histogram) {
+            this(name, histogram, recording() ? new CommandEvent(name) :
+                    null);
+        }
+
+        private CommandTimer(String name, Histogram histogram,
+                             CommandEvent event) {
+            super(histogram, -1, event);
+            this.name = name;
+            this.event = event;
+            this.counted = new Scope();
+            this.outer = SCOPE.get();
+            SCOPE.set(counted);
+        }
+
+        @Override
+        public void close() {
+            if (super.elapsed >= 0) {
+                return;
+            }
+            SCOPE.set(outer);
+            if (event != null) {
+                event.linesParsed = counted.get(Counter.LINES_PARSED);
+                event.malformedLines = counted.get(Counter.MALFORMED_LINES);
+                event.linesRemoved = counted.get(Counter.LINES_REMOVED);
+                event.bytesRead = counted.get(Counter.BYTES_READ);
+                event.bytesWritten = counted.get(Counter.BYTES_WRITTEN);
+                event.tasksLoaded = counted.get(Counter.TASKS_LOADED);
+            }
+            super.close();
+        }
+
+        // What --stats prints once the command is done
+        public String stats(boolean withJvmStart) {
+            close();
+            StringBuilder out = new StringBuilder();
+            out.append("stats: ").append(name).append(' ')
+                    .append(millis(super.elapsed)).append('\n');
+            if (withJvmStart && jvmStartNanos >= 0) {
+                out.append("  jvm start ").append(millis(jvmStartNanos))
+                        .append('\n');
+            }
+            for (Phase phase : Phase.values()) {
+                int i = phase.ordinal();
+                if (counted.phaseCounts.get(i) > 0) {
+                    out.append("  ").append(phase.key()).append(' ')
+                            .append(millis(counted.phaseNanos.get(i)));
+                    if (counted.phaseCounts.get(i) > 1) {
+                        out.append(" (").append(counted.phaseCounts.get(i))
+                                .append(" times)");
+                    }
+                    out.append('\n');
+                }
+            }
+            for (Counter counter : Counter.values()) {
+                out.append("  ").append(counter.key.replace('_', ' '))
+                        .append(' ').append(counted.get(counter)).append('\n');
+            }
+            return out.toString();
+        }
+    }
+}
+
+@Name("tasktracker.Phase")
+@Label("Task Tracker Phase")
+@Category("Task Tracker")
+class PhaseEvent extends Event {
+    @Label("Phase")
+    String phase;
+
+    PhaseEvent(String phase) {
+        this.phase = phase;
+    }
+}
+
+@Name("tasktracker.Command")
+@Label("Task Tracker Command")
+@Category("Task Tracker")
+class CommandEvent extends Event {
+    @Label("Command")
+    String command;
+    @Label("Lines Parsed")
+    long linesParsed;
+    @Label("Malformed Lines")
+    long malformedLines;
+    @Label("Lines Removed")
+    long linesRemoved;
+    @Label("Bytes Read")
+    @DataAmount
+    long bytesRead;
+    @Label("Bytes Written")
+    @DataAmount
+    long bytesWritten;
+    @Label("Tasks Loaded")
+    long tasksLoaded;
+
+    CommandEvent(String command) {
+        this.command = command;
     }
 }
 
 interface TaskLogger {
-    void logAction(String taskName, String command,
+    default void logAction(String taskName, String command,
+                           String description, String size) {
+        logAction(Instant.now(), taskName, command, description, size);
+    }
+    void logAction(Instant time, String taskName, String command,
                    String description, String size);
     void renameTasks(String oldName, String newName);
     void deleteTasks(String taskName);
+    void exportLog(String csvPath);
+    void importLog(String csvPath);
+    void compact();
+
+    // Actions logged until endBatch may be held back and written together
+    default void beginBatch() {}
+    default void endBatch() {}
 }
 
 interface TaskLogParser {
     Map<String, Task> parseLogFile();
+
+    // Only the tasks whose final name and size pass filter, by default
+    // every task is built and the rest dropped
+    default Map<String, Task> parseMatching(
+            BiPredicate<String, String> filter) {
+        Map<String, Task> matching = new HashMap<>();
+        parseLogFile().forEach((name, task) -> {
+            if (filter.test(name, task.getSize())) {
+                matching.put(name, task);
+            }
+        });
+        return matching;
+    }
+
+    // Whether lookup finds a task without replaying the whole log
+    default boolean hasIndex() {
+        return false;
+    }
+
+    // The task named name (in lower case), null when there is none
+    default Task lookup(String name) {
+        return parseLogFile().get(name);
+    }
+
+    // Replays into replayer only the records appended since the last
+    // parse; false when the log was truncated or rewritten since, or the
+    // parser cannot tell, and it must be parsed again
+    default boolean parseAppended(TaskReplayer replayer) {
+        return false;
+    }
 }
 
 class SummaryInfo {
+    static final int DEFAULT_TOP = 5;
+
     private final Map<String, Task> taskMap;
 
-    public SummaryInfo(Map<String, Task> taskMap, Predicate<Task> filter) {
-        this.taskMap = taskMap.entrySet().stream()
-                .filter(entry -> filter.test(entry.getValue()))
-                .collect(Collectors.toMap(Map.Entry::getKey,
-                        Map.Entry::getValue));
+    // Summarises the tasks in the order given
+    public SummaryInfo(Collection<Task> tasks) {
+        this.taskMap = new LinkedHashMap<>();
+        for (Task task : tasks) {
+            taskMap.put(task.getName(), task);
+        }
+    }
+
+    static SummaryWriter.Column[] taskColumns(int nameWidth) {
+        return new SummaryWriter.Column[]{
+                new SummaryWriter.Column("Task Name", "name", nameWidth),
+                new SummaryWriter.Column("Total", "total", 10),
+                new SummaryWriter.Column("Mean", "mean", 10),
+                new SummaryWriter.Column("Min", "min", 10),
+                new SummaryWriter.Column("Max", "max", 10),
+                new SummaryWriter.Column("P50", "p50", 10),
+                new SummaryWriter.Column("P90", "p90", 10),
+                new SummaryWriter.Column("P99", "p99", 10),
+                new SummaryWriter.Column("Size", "size", 4),
+                new SummaryWriter.Column("Sessions", "sessions", 8),
+                new SummaryWriter.Column("Description", "description", 0)};
     }
 
-    public void printTaskTimes() {
-        final String taskFormat = "%-16s | %-10s | %-10s | %-10s " +
-                "| %-10s | %-4s | %-8s | %s%n";
-        System.out.format(taskFormat, "Task Name", "Total", "Mean", "Min",
-                "Max", "Size", "Sessions", "Description");
+    static void printTask(SummaryWriter out, Task task) {
+        out.cell(task.getName()).cell(task.getTotalDuration())
+                .cell(task.getAvgTimeEntry()).cell(task.getMinTimeEntry())
+                .cell(task.getMaxTimeEntry())
+                .cell(task.getPercentileTimeEntry(0.5))
+                .cell(task.getPercentileTimeEntry(0.9))
+                .cell(task.getPercentileTimeEntry(0.99))
+                .cell(task.getSize()).cell(task.getSessions())
+                .cell(task.getDescription()).endRow();
+    }
 
+    public void printTaskTimes(SummaryWriter out) {
+        out.beginTable("tasks", taskColumns(16));
         for(Task task : taskMap.values()){
-            System.out.format(taskFormat, task.getName(),
-                    task.getTotalDuration(), task.getAvgTimeEntry(),
-                    task.getMinTimeEntry(), task.getMaxTimeEntry(),
-                    task.getSize(), task.getSessions(), task.getDescription());
+            printTask(out, task);
         }
+        out.endTable();
     }
 
-    public void printTotalTaskTimes() {
-        final String totalFormat = "%-10s | %-10s | %-10s | %-10s | %-14s | " +
-                "%s %n";
+    public void printTotalTaskTimes(SummaryWriter out) {
         Task min = minDurationTask();
         Task max = maxDurationTask();
 
@@ -77,11 +933,86 @@ class SummaryInfo {
         Duration maxDuration = max == null? Duration.ZERO :
                 max.getTotalDuration();
 
-        System.out.format(totalFormat, "Total", "Mean", "Min: " + minName,
-                "Max: " + maxName, "Total Sessions", "Mean Sessions");
-        System.out.format(totalFormat, totalOverallTimeSpent(),
-                avgTotalTimeSpent(), minDuration, maxDuration,
-                totalOverallSessions(), avgTotalTimeSessions());
+        out.beginTable("totals",
+                new SummaryWriter.Column("Total", "total", 10),
+                new SummaryWriter.Column("Mean", "mean", 10),
+                new SummaryWriter.Column("Min: " + minName, "min", 10),
+                new SummaryWriter.Column("Max: " + maxName, "max", 10),
+                new SummaryWriter.Column("Total Sessions", "sessions", 14),
+                new SummaryWriter.Column("Mean Sessions", "mean_sessions",
+                        0),
+                new SummaryWriter.Column(null, "min_task",
+                        SummaryWriter.HIDDEN),
+                new SummaryWriter.Column(null, "max_task",
+                        SummaryWriter.HIDDEN));
+        out.cell(totalOverallTimeSpent()).cell(avgTotalTimeSpent())
+                .cell(minDuration).cell(maxDuration)
+                .cell(totalOverallSessions()).cell(avgTotalTimeSessions())
+                .cell(min == null ? null : minName)
+                .cell(max == null ? null : maxName).endRow();
+        out.endTable();
+
+        SessionSketch sessions = overallSessionSketch();
+        long shortest = Long.MAX_VALUE;
+        long longest = 0;
+        for (Task task : taskMap.values()) {
+            if (task.getClosedSessions() > 0) {
+                shortest = Math.min(shortest,
+                        task.getMinTimeEntry().getSeconds());
+                longest = Math.max(longest,
+                        task.getMaxTimeEntry().getSeconds());
+            }
+        }
+        out.text("\nSession length percentiles:");
+        out.beginTable("percentiles",
+                new SummaryWriter.Column("P50", "p50", 10),
+                new SummaryWriter.Column("P90", "p90", 10),
+                new SummaryWriter.Column("P99", "p99", 0));
+        out.cell(sessions.quantile(0.5, shortest, longest))
+                .cell(sessions.quantile(0.9, shortest, longest))
+                .cell(sessions.quantile(0.99, shortest, longest)).endRow();
+        out.endTable();
+    }
+
+    public void printTopTasks(SummaryWriter out, int k) {
+        out.text("\nTop " + k + " tasks by time:");
+        out.beginTable("top",
+                new SummaryWriter.Column("Rank", "rank", 4),
+                new SummaryWriter.Column("Task Name", "name", 16),
+                new SummaryWriter.Column("Total", "total", 0));
+        List<Task> top = topTasks(k);
+        for (int i = 0; i < top.size(); i++) {
+            out.cell(i + 1).cell(top.get(i).getName())
+                    .cell(top.get(i).getTotalDuration()).endRow();
+        }
+        out.endTable();
+    }
+
+    // Keeps a min-heap of the k largest totals, so memory stays at k tasks
+    private List<Task> topTasks(int k) {
+        Comparator<Task> byTotal = Comparator
+                .comparing(Task::getTotalDuration)
+                .thenComparing(Task::getName, Comparator.reverseOrder());
+        PriorityQueue<Task> heap = new PriorityQueue<>(k, byTotal);
+        for (Task task : taskMap.values()) {
+            if (heap.size() < k) {
+                heap.add(task);
+            } else if (byTotal.compare(task, heap.peek()) > 0) {
+                heap.poll();
+                heap.add(task);
+            }
+        }
+        List<Task> top = new ArrayList<>(heap);
+        top.sort(byTotal.reversed());
+        return top;
+    }
+
+    private SessionSketch overallSessionSketch() {
+        SessionSketch overall = new SessionSketch();
+        for (Task task : taskMap.values()) {
+            overall.merge(task.getSessionSketch());
+        }
+        return overall;
     }
 
     private List<Duration> getTaskDurations() {
@@ -142,7 +1073,7 @@ class SummaryInfo {
 }
 
 interface SummaryStrategy {
-    void generateSummary();
+    void generateSummary(SummaryWriter out);
 }
 
 class SummaryByName implements SummaryStrategy {
@@ -153,497 +1084,6680 @@ class SummaryByName implements SummaryStrategy {
     }
 
     @Override
-    public void generateSummary() {
-        final String taskFormat = "%-10s | %-10s | %-10s | %-10s " +
-                "| %-10s | %-4s | %-8s | %s%n";
-
-        System.out.format(taskFormat, "Task Name", "Total", "Mean", "Min",
-                "Max", "Size", "Sessions", "Description");
-        System.out.format(taskFormat, task.getName(),
-                task.getTotalDuration(), task.getAvgTimeEntry(),
-                task.getMinTimeEntry(), task.getMaxTimeEntry(), task.getSize(),
-                task.getSessions(), task.getDescription());
+    public void generateSummary(SummaryWriter out) {
+        out.beginTable("tasks", SummaryInfo.taskColumns(10));
+        SummaryInfo.printTask(out, task);
+        out.endTable();
     }
 }
 
 class SummaryBySize implements SummaryStrategy {
     private final SummaryInfo summary;
     private final String size;
+    private final int top;
 
-    public SummaryBySize(SummaryInfo summary, String size) {
+    public SummaryBySize(SummaryInfo summary, String size, int top) {
         this.summary = summary;
         this.size = size;
+        this.top = top;
     }
 
     @Override
-    public void generateSummary() {
-        System.out.println("Tasks with size: " + size);
-        summary.printTaskTimes();
+    public void generateSummary(SummaryWriter out) {
+        out.text("Tasks with size: " + size);
+        summary.printTaskTimes(out);
+
+        out.text("\nTotal times of all tasks with size: " + size);
+        summary.printTotalTaskTimes(out);
+        summary.printTopTasks(out, top);
+    }
+}
+
+class SummaryBySearch implements SummaryStrategy {
+    private final SummaryInfo summary;
+    private final String terms;
+
+    public SummaryBySearch(SummaryInfo summary, String terms) {
+        this.summary = summary;
+        this.terms = terms;
+    }
 
-        System.out.println("\nTotal times of all tasks with size: " + size);
-        summary.printTotalTaskTimes();
+    @Override
+    public void generateSummary(SummaryWriter out) {
+        out.text("Tasks matching: " + terms);
+        summary.printTaskTimes(out);
     }
 }
 
 class SummaryForAll implements SummaryStrategy {
     private final SummaryInfo summary;
+    private final int top;
 
-    public SummaryForAll(SummaryInfo summary) {
+    public SummaryForAll(SummaryInfo summary, int top) {
         this.summary = summary;
+        this.top = top;
     }
 
     @Override
-    public void generateSummary() {
-        System.out.println("All Tasks:");
-        summary.printTaskTimes();
+    public void generateSummary(SummaryWriter out) {
+        out.text("All Tasks:");
+        summary.printTaskTimes(out);
 
-        System.out.println("\nTotal times of all tasks: ");
-        summary.printTotalTaskTimes();
+        out.text("\nTotal times of all tasks: ");
+        summary.printTotalTaskTimes(out);
+        summary.printTopTasks(out, top);
     }
 }
 
-class CommandParser {
-    TaskExecutor taskExecutor;
-    public CommandParser(TaskExecutor taskExecutor) {
-        this.taskExecutor = taskExecutor;
+// The view summary --watch redraws: one row per task in name order, so a
+// row stays on the same line while it changes, with open sessions counted
+// up to now
+class SummaryLive implements SummaryStrategy {
+    private final List<Task> tasks;
+    private final long nowSecond;
+
+    public SummaryLive(Collection<Task> tasks, long nowSecond) {
+        this.tasks = new ArrayList<>(tasks);
+        this.tasks.sort(Comparator.comparing(Task::getName));
+        this.nowSecond = nowSecond;
     }
 
-    public void parseThenExecute(String[] args)
-            throws IllegalCommandException, MissingArgumentException {
-        if (args.length == 0) {
-            System.err.println("No command provided");
-            return;
+    @Override
+    public void generateSummary(SummaryWriter out) {
+        Duration total = Duration.ZERO;
+        int sessions = 0;
+        int running = 0;
+        out.beginTable("tasks",
+                new SummaryWriter.Column("Task Name", "name", 16),
+                new SummaryWriter.Column("Total", "total", 10),
+                new SummaryWriter.Column("Running", "running", 10),
+                new SummaryWriter.Column("Sessions", "sessions", 8),
+                new SummaryWriter.Column("Size", "size", 4),
+                new SummaryWriter.Column("Description", "description", 0));
+        for (Task task : tasks) {
+            Duration open = task.getRunningDuration(nowSecond);
+            Duration taskTotal = task.getTotalDuration().plus(open);
+            out.cell(task.getName()).cell(taskTotal);
+            if (task.lastEntryStopped()) {
+                out.cell("");
+            } else {
+                out.cell(open);
+                running++;
+            }
+            out.cell(task.getSessions()).cell(task.getSize())
+                    .cell(task.getDescription()).endRow();
+            total = total.plus(taskTotal);
+            sessions += task.getSessions();
         }
+        out.endTable();
 
-        String command = args[0].toLowerCase();
+        out.text("");
+        out.beginTable("totals",
+                new SummaryWriter.Column("Total", "total", 10),
+                new SummaryWriter.Column("Running", "running", 10),
+                new SummaryWriter.Column("Tasks", "tasks", 8),
+                new SummaryWriter.Column("Sessions", "sessions", 0));
+        out.cell(total).cell(running).cell(tasks.size()).cell(sessions)
+                .endRow();
+        out.endTable();
+    }
+}
 
-        switch (command) {
+class SummaryByWindow implements SummaryStrategy {
+    private final Collection<Task> tasks;
+    private final SummaryWindow window;
+
+    public SummaryByWindow(Collection<Task> tasks, SummaryWindow window) {
+        this.tasks = tasks;
+        this.window = window;
+    }
+
+    @Override
+    public void generateSummary(SummaryWriter out) {
+        if (window.getPeriod() == null) {
+            printTaskTotals(out);
+        } else {
+            printPeriodTotals(out);
+        }
+    }
+
+    private void printTaskTotals(SummaryWriter out) {
+        out.text("Tasks" + window.describe() + ":");
+        out.beginTable("tasks",
+                new SummaryWriter.Column("Task Name", "name", 16),
+                new SummaryWriter.Column("Total", "total", 10),
+                new SummaryWriter.Column("Size", "size", 4),
+                new SummaryWriter.Column("Description", "description", 0));
+
+        long total = 0;
+        for (Task task : sortedTasks()) {
+            long seconds = task.getTimeBuckets().total(window.getFromDay(),
+                    window.getToDay());
+            if (seconds > 0) {
+                out.cell(task.getName()).cell(Duration.ofSeconds(seconds))
+                        .cell(task.getSize()).cell(task.getDescription())
+                        .endRow();
+                total += seconds;
+            }
+        }
+        out.endTable();
+        out.text("\nTotal time" + window.describe() + ": "
+                + Duration.ofSeconds(total));
+    }
+
+    private void printPeriodTotals(SummaryWriter out) {
+        SummaryPeriod period = window.getPeriod();
+        // Period start day -> task name -> seconds
+        Map<Long, Map<String, Long>> periods = new TreeMap<>();
+        for (Task task : sortedTasks()) {
+            task.getTimeBuckets().forEach(window.getFromDay(),
+                    window.getToDay(), (day, seconds) -> periods
+                            .computeIfAbsent(period.start(day),
+                                    start -> new LinkedHashMap<>())
+                            .merge(task.getName(), seconds, Long::sum));
+        }
+
+        out.text("Tasks by " + period.name().toLowerCase(Locale.ROOT)
+                + window.describe() + ":");
+        out.beginTable("periods",
+                new SummaryWriter.Column("Period", "period", 10),
+                new SummaryWriter.Column("Task Name", "name", 16),
+                new SummaryWriter.Column("Total", "total", 0));
+        long total = 0;
+        for (Map.Entry<Long, Map<String, Long>> entry : periods.entrySet()) {
+            String label = period.label(entry.getKey());
+            for (Map.Entry<String, Long> task : entry.getValue().entrySet()) {
+                out.cell(label).cell(task.getKey())
+                        .cell(Duration.ofSeconds(task.getValue())).endRow();
+                total += task.getValue();
+            }
+        }
+        out.endTable();
+        out.text("\nTotal time" + window.describe() + ": "
+                + Duration.ofSeconds(total));
+    }
+
+    private List<Task> sortedTasks() {
+        return tasks.stream()
+                .sorted(Comparator.comparing(Task::getName))
+                .collect(Collectors.toList());
+    }
+}
+
+// UTC days [fromDay, toDay) a summary covers, optionally broken into
+// periods
+class SummaryWindow {
+    private final long fromDay;
+    private final long toDay;
+    private final SummaryPeriod period;
+
+    public SummaryWindow(long fromDay, long toDay, SummaryPeriod period) {
+        this.fromDay = fromDay;
+        this.toDay = toDay;
+        this.period = period;
+    }
+
+    // Null when no window option is given, --to is inclusive
+    public static SummaryWindow parse(String from, String to, String by) {
+        if (from == null && to == null && by == null) {
+            return null;
+        }
+        long fromDay = from == null ? Long.MIN_VALUE : parseDay("--from",
+                from);
+        long toDay = to == null ? Long.MAX_VALUE : parseDay("--to", to) + 1;
+        if (fromDay >= toDay) {
+            throw new IllegalArgumentException("--from must not be after "
+                    + "--to");
+        }
+        return new SummaryWindow(fromDay, toDay,
+                by == null ? null : SummaryPeriod.parse(by));
+    }
+
+    private static long parseDay(String flag, String value) {
+        try {
+            return LocalDate.parse(value).toEpochDay();
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid date for " + flag
+                    + ": " + value + ", expected yyyy-MM-dd");
+        }
+    }
+
+    public long getFromDay() {
+        return fromDay;
+    }
+
+    public long getToDay() {
+        return toDay;
+    }
+
+    public SummaryPeriod getPeriod() {
+        return period;
+    }
+
+    public String describe() {
+        String from = fromDay == Long.MIN_VALUE ? "" :
+                " from " + LocalDate.ofEpochDay(fromDay);
+        String to = toDay == Long.MAX_VALUE ? "" :
+                " to " + LocalDate.ofEpochDay(toDay - 1);
+        return from + to;
+    }
+}
+
+enum SummaryPeriod {
+    DAY,
+    WEEK,
+    MONTH;
+
+    // First day of the period holding epochDay, weeks start on Monday
+    public long start(long epochDay) {
+        switch (this) {
+            case WEEK:
+                return epochDay - LocalDate.ofEpochDay(epochDay)
+                        .getDayOfWeek().getValue() + 1;
+            case MONTH:
+                return LocalDate.ofEpochDay(epochDay).withDayOfMonth(1)
+                        .toEpochDay();
+            default:
+                return epochDay;
+        }
+    }
+
+    public String label(long startDay) {
+        LocalDate date = LocalDate.ofEpochDay(startDay);
+        switch (this) {
+            case WEEK:
+                return String.format("%d-W%02d",
+                        date.get(IsoFields.WEEK_BASED_YEAR),
+                        date.get(IsoFields.WEEK_OF_WEEK_BASED_YEAR));
+            case MONTH:
+                return YearMonth.from(date).toString();
+            default:
+                return date.toString();
+        }
+    }
+
+    public static SummaryPeriod parse(String value) {
+        try {
+            return valueOf(value.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown period " + value
+                    + ", expected day, week or month");
+        }
+    }
+}
+
+// Presentation options shared by summary and search
+class SummaryOptions {
+    static final SummaryOptions DEFAULT = new SummaryOptions(
+            SummaryInfo.DEFAULT_TOP, false, SummaryFormat.TABLE, false);
+
+    private final int top;
+    private final boolean sorted;
+    private final SummaryFormat format;
+    private final boolean streaming;
+
+    public SummaryOptions(int top, boolean sorted, SummaryFormat format,
+                          boolean streaming) {
+        this.top = top;
+        this.sorted = sorted;
+        this.format = format;
+        this.streaming = streaming;
+    }
+
+    public int getTop() {
+        return top;
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    public SummaryFormat getFormat() {
+        return format;
+    }
+
+    // Tasks by name when sorted, otherwise as given
+    public Collection<Task> order(Collection<Task> tasks) {
+        if (!sorted) {
+            return tasks;
+        }
+        List<Task> ordered = new ArrayList<>(tasks);
+        ordered.sort(Comparator.comparing(Task::getName));
+        return ordered;
+    }
+}
+
+enum SummaryFormat {
+    TABLE,
+    CSV,
+    JSON;
+
+    public static SummaryFormat parse(String value) {
+        if (value == null) {
+            return TABLE;
+        }
+        try {
+            return valueOf(value.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown format " + value
+                    + ", expected table, csv or json");
+        }
+    }
+
+    public SummaryWriter writer(PrintStream out) {
+        switch (this) {
+            case CSV:
+                return new CsvSummaryWriter(out);
+            case JSON:
+                return new JsonSummaryWriter(out);
+            default:
+                return new TableSummaryWriter(out);
+        }
+    }
+}
+
+// Renders summary tables into one reused buffer that is written out in
+// large chunks, instead of a formatted print per row. Rows are filled a
+// cell at a time in column order.
+abstract class SummaryWriter implements AutoCloseable {
+    // Width of a column left out of the table format
+    static final int HIDDEN = -1;
+    private static final int CHUNK = 1 << 16;
+
+    static final class Column {
+        final String header;
+        // Name in the csv and json formats
+        final String key;
+        // Padding in the table format, 0 for none
+        final int width;
+
+        Column(String header, String key, int width) {
+            this.header = header;
+            this.key = key;
+            this.width = width;
+        }
+    }
+
+    protected final StringBuilder buffer;
+    private final PrintStream out;
+    protected Column[] columns;
+    private int column;
+    protected int tables;
+    protected int rows;
+
+    protected SummaryWriter(PrintStream out) {
+        this.out = out;
+        this.buffer = new StringBuilder(CHUNK + 1024);
+    }
+
+    // Titles and notes, only part of the table format
+    public void text(String line) {
+    }
+
+    public void beginTable(String name, Column... columns) {
+        this.columns = columns;
+        this.rows = 0;
+        startTable(name);
+    }
+
+    public void endTable() {
+        finishTable();
+        tables++;
+    }
+
+    public SummaryWriter cell(String value) {
+        if (beginCell()) {
+            appendString(value);
+            endCell();
+        }
+        return this;
+    }
+
+    public SummaryWriter cell(long value) {
+        if (beginCell()) {
+            buffer.append(value);
+            endCell();
+        }
+        return this;
+    }
+
+    public SummaryWriter cell(Duration value) {
+        if (beginCell()) {
+            appendDuration(value.getSeconds());
+            endCell();
+        }
+        return this;
+    }
+
+    public void endRow() {
+        finishRow();
+        column = 0;
+        rows++;
+        if (buffer.length() >= CHUNK) {
+            flush();
+        }
+    }
+
+    @Override
+    public void close() {
+        finish();
+        flush();
+        out.flush();
+    }
+
+    private boolean beginCell() {
+        if (column == 0) {
+            startRow();
+        }
+        Column current = columns[column];
+        return startCell(current, column++);
+    }
+
+    private void endCell() {
+        endCell(columns[column - 1]);
+    }
+
+    private void flush() {
+        out.append(buffer);
+        buffer.setLength(0);
+    }
+
+    protected abstract void startTable(String name);
+
+    protected void finishTable() {
+    }
+
+    protected void startRow() {
+    }
+
+    // Returns false to leave the cell out
+    protected abstract boolean startCell(Column column, int index);
+
+    protected void endCell(Column column) {
+    }
+
+    protected abstract void finishRow();
+
+    protected abstract void appendString(String value);
+
+    // Durations are whole seconds
+    protected void appendDuration(long seconds) {
+        buffer.append(seconds);
+    }
+
+    protected void finish() {
+    }
+}
+
+// The padded, pipe separated layout, durations as Duration.toString
+class TableSummaryWriter extends SummaryWriter {
+    private static final String SEPARATOR = " | ";
+    private static final String NEWLINE = System.lineSeparator();
+
+    private boolean firstCell;
+    private int cellStart;
+
+    public TableSummaryWriter(PrintStream out) {
+        super(out);
+    }
+
+    @Override
+    public void text(String line) {
+        buffer.append(line).append(NEWLINE);
+    }
+
+    @Override
+    protected void startTable(String name) {
+        startRow();
+        for (int i = 0; i < columns.length; i++) {
+            if (startCell(columns[i], i)) {
+                buffer.append(columns[i].header);
+                endCell(columns[i]);
+            }
+        }
+        finishRow();
+    }
+
+    @Override
+    protected void startRow() {
+        firstCell = true;
+    }
+
+    @Override
+    protected boolean startCell(Column column, int index) {
+        if (column.width == HIDDEN) {
+            return false;
+        }
+        if (!firstCell) {
+            buffer.append(SEPARATOR);
+        }
+        firstCell = false;
+        cellStart = buffer.length();
+        return true;
+    }
+
+    @Override
+    protected void endCell(Column column) {
+        for (int pad = column.width - (buffer.length() - cellStart);
+             pad > 0; pad--) {
+            buffer.append(' ');
+        }
+    }
+
+    @Override
+    protected void finishRow() {
+        buffer.append(NEWLINE);
+    }
+
+    @Override
+    protected void appendString(String value) {
+        buffer.append(value);
+    }
+
+    // Same text as Duration.toString for whole seconds
+    @Override
+    protected void appendDuration(long seconds) {
+        if (seconds <= 0) {
+            buffer.append(Duration.ofSeconds(seconds));
+            return;
+        }
+        buffer.append("PT");
+        long hours = seconds / 3600;
+        long minutes = seconds % 3600 / 60;
+        long rest = seconds % 60;
+        if (hours != 0) {
+            buffer.append(hours).append('H');
+        }
+        if (minutes != 0) {
+            buffer.append(minutes).append('M');
+        }
+        if (rest != 0) {
+            buffer.append(rest).append('S');
+        }
+    }
+}
+
+// One header row per table, tables separated by a blank line
+class CsvSummaryWriter extends SummaryWriter {
+    public CsvSummaryWriter(PrintStream out) {
+        super(out);
+    }
+
+    @Override
+    protected void startTable(String name) {
+        if (tables > 0) {
+            buffer.append('\n');
+        }
+        for (int i = 0; i < columns.length; i++) {
+            startCell(columns[i], i);
+            appendString(columns[i].key);
+        }
+        finishRow();
+    }
+
+    @Override
+    protected boolean startCell(Column column, int index) {
+        if (index > 0) {
+            buffer.append(',');
+        }
+        return true;
+    }
+
+    @Override
+    protected void finishRow() {
+        buffer.append('\n');
+    }
+
+    @Override
+    protected void appendString(String value) {
+        if (value == null) {
+            return;
+        }
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            buffer.append(value);
+            return;
+        }
+        buffer.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                buffer.append('"');
+            }
+            buffer.append(c);
+        }
+        buffer.append('"');
+    }
+}
+
+// An object with one array of row objects per table
+class JsonSummaryWriter extends SummaryWriter {
+    public JsonSummaryWriter(PrintStream out) {
+        super(out);
+    }
+
+    @Override
+    protected void startTable(String name) {
+        buffer.append(tables == 0 ? "{\n  " : ",\n  ");
+        appendString(name);
+        buffer.append(": [");
+    }
+
+    @Override
+    protected void finishTable() {
+        buffer.append(rows == 0 ? "]" : "\n  ]");
+    }
+
+    @Override
+    protected void startRow() {
+        buffer.append(rows == 0 ? "\n    {" : ",\n    {");
+    }
+
+    @Override
+    protected boolean startCell(Column column, int index) {
+        if (index > 0) {
+            buffer.append(", ");
+        }
+        appendString(column.key);
+        buffer.append(": ");
+        return true;
+    }
+
+    @Override
+    protected void finishRow() {
+        buffer.append('}');
+    }
+
+    @Override
+    protected void appendString(String value) {
+        if (value == null) {
+            buffer.append("null");
+            return;
+        }
+        buffer.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                buffer.append('\\').append(c);
+            } else if (c < 0x20) {
+                buffer.append(String.format("\\u%04x", (int) c));
+            } else {
+                buffer.append(c);
+            }
+        }
+        buffer.append('"');
+    }
+
+    @Override
+    protected void finish() {
+        buffer.append(tables == 0 ? "{}\n" : "\n}\n");
+    }
+}
+
+// Shows frames of text one after another. On a terminal only the lines
+// that differ from the frame before are rewritten, with the cursor moved
+// to them; otherwise each changed frame is printed whole.
+class WatchScreen {
+    private static final String ESC = "\033[";
+
+    private final PrintStream out;
+    private final boolean terminal;
+    private List<String> shown;
+
+    public WatchScreen(PrintStream out, boolean terminal) {
+        this.out = out;
+        this.terminal = terminal;
+    }
+
+    public void show(List<String> lines) {
+        if (lines.equals(shown)) {
+            return;
+        }
+        StringBuilder frame = new StringBuilder();
+        if (!terminal) {
+            for (String line : lines) {
+                frame.append(line).append(System.lineSeparator());
+            }
+            frame.append(System.lineSeparator());
+        } else {
+            // Case: first frame, start from a clear screen
+            if (shown == null) {
+                frame.append(ESC).append("H").append(ESC).append("2J");
+                shown = List.of();
+            }
+            for (int i = 0; i < lines.size(); i++) {
+                if (i >= shown.size() || !lines.get(i).equals(shown.get(i))) {
+                    frame.append(ESC).append(i + 1).append(";1H")
+                            .append(lines.get(i)).append(ESC).append("K");
+                }
+            }
+            frame.append(ESC).append(lines.size() + 1).append(";1H");
+            if (lines.size() < shown.size()) {
+                frame.append(ESC).append("J");
+            }
+        }
+        shown = lines;
+        out.print(frame);
+        out.flush();
+    }
+}
+
+class CommandParser {
+    private static final String SUMMARY_USAGE = "summary [task name|size] "
+            + "[--from <yyyy-MM-dd>] [--to <yyyy-MM-dd>] "
+            + "[--by day|week|month] [--top <k>] [--sorted] "
+            + "[--format table|csv|json] [--stream] [--all-projects] "
+            + "[--watch]";
+    private static final String SEARCH_USAGE = "search <terms> [--sorted] "
+            + "[--format table|csv|json]";
+    private static final Set<String> BATCH_COMMANDS = Set.of("start",
+            "stop", "describe", "size", "rename", "delete");
+    private static final Set<String> PER_TASK_COMMANDS = Set.of("start",
+            "stop", "describe", "size");
+
+    TaskExecutor taskExecutor;
+    private final Path logPath;
+    public CommandParser(TaskExecutor taskExecutor) {
+        this(taskExecutor, null);
+    }
+
+    // summary --watch follows the log at logPath
+    public CommandParser(TaskExecutor taskExecutor, Path logPath) {
+        this.taskExecutor = taskExecutor;
+        this.logPath = logPath;
+    }
+
+    // A filtered summary that replays only the tasks it reports
+    public static boolean isStreaming(String[] args) {
+        return args.length > 1 && args[0].equalsIgnoreCase("summary")
+                && Arrays.asList(args).contains("--stream");
+    }
+
+    // A batch reads the caller's stdin or files, a rollup other shards'
+    // logs and a watch runs until stopped, so they never go to a daemon
+    public static boolean isLocal(String[] args) {
+        return args.length > 0 && args[0].equalsIgnoreCase("batch")
+                || isAllProjects(args) || isWatch(args);
+    }
+
+    public static boolean isWatch(String[] args) {
+        return args.length > 0 && args[0].equalsIgnoreCase("summary")
+                && Arrays.asList(args).contains("--watch");
+    }
+
+    public static boolean isAllProjects(String[] args) {
+        return args.length > 0 && args[0].equalsIgnoreCase("summary")
+                && Arrays.asList(args).contains("--all-projects");
+    }
+
+    // Commands on a single task, which a concurrent daemon runs alongside
+    // commands on other tasks
+    public static boolean isPerTask(String[] args) {
+        return args.length > 0
+                && PER_TASK_COMMANDS.contains(args[0].toLowerCase(Locale.ROOT));
+    }
+
+    // The export or import file made absolute against this process's
+    // directory, since a daemon resolves relative paths against its own
+    public static String[] withAbsolutePaths(String[] args) {
+        if (args.length < 2 || !args[0].equalsIgnoreCase("export")
+                && !args[0].equalsIgnoreCase("import")) {
+            return args;
+        }
+        String[] absolute = args.clone();
+        absolute[1] = Paths.get(args[1]).toAbsolutePath().toString();
+        return absolute;
+    }
+
+    public static boolean isReadOnly(String[] args) {
+        return args.length == 0 || args[0].equalsIgnoreCase("summary")
+                || args[0].equalsIgnoreCase("search")
+                || args[0].equalsIgnoreCase("export")
+                || args[0].equalsIgnoreCase("metrics");
+    }
+
+    public void parseThenExecute(String[] args)
+            throws IllegalCommandException, MissingArgumentException {
+        if (args.length == 0) {
+            System.err.println("No command provided");
+            return;
+        }
+
+        String command = args[0].toLowerCase(Locale.ROOT);
+
+        switch (command) {
+            case "start":
+                if (args.length < 2) {
+                    throw new MissingArgumentException("start <task name>");
+                }
+                taskExecutor.startTask(args[1]);
+                break;
+            case "stop":
+                if (args.length < 2) {
+                    throw new MissingArgumentException("stop <task name>");
+                }
+                taskExecutor.stopTask(args[1]);
+                break;
+            case "describe":
+                if (args.length < 3) {
+                    throw new MissingArgumentException("describe " +
+                            "<task name> <description> [{S|M|L|XL}]");
+                }
+                String size = null;
+                if (Task.isValidSize(args[args.length - 1])) {
+                    size = args[args.length - 1];
+                }
+                String description = String.join(" ",
+                        Arrays.copyOfRange(args, 2, size != null ?
+                                args.length - 1 : args.length));
+
+                taskExecutor.describe(args[1], description, size);
+                break;
+
+            case "size":
+                if (args.length < 3) {
+                    throw new MissingArgumentException("size <task name> " +
+                            "{S|M|L|XL}");
+                }
+                taskExecutor.size(args[1], args[2]);
+                break;
+
+            case "rename":
+                if (args.length < 3) {
+                    throw new MissingArgumentException("rename " +
+                            "<old task name> <new task name>");
+                }
+                taskExecutor.rename(args[1], args[2]);
+                break;
+
+            case "delete":
+                if (args.length < 2) {
+                    throw new MissingArgumentException("delete <task name>");
+                }
+                taskExecutor.delete(args[1]);
+                break;
+
+            case "summary":
+                List<String> operands = new ArrayList<>();
+                Map<String, String> flags = parseFlags(args, operands,
+                        Set.of("from", "to", "by", "top", "format"),
+                        Set.of("sorted", "stream", "all-projects", "watch"),
+                        SUMMARY_USAGE);
+                if (flags.containsKey("watch")) {
+                    if (flags.size() > 1) {
+                        throw new IllegalArgumentException("--watch cannot "
+                                + "be combined with other summary options");
+                    } else if (logPath == null) {
+                        throw new IllegalArgumentException("--watch needs "
+                                + "a log file to follow");
+                    }
+                    taskExecutor.watch(operands.isEmpty() ? null :
+                            operands.get(0), logPath);
+                    break;
+                }
+                SummaryWindow window = SummaryWindow.parse(flags.get("from"),
+                        flags.get("to"), flags.get("by"));
+                if (window != null && flags.containsKey("top")) {
+                    throw new IllegalArgumentException("--top cannot be "
+                            + "combined with --from, --to or --by");
+                }
+                taskExecutor.summary(operands.isEmpty() ? null :
+                        operands.get(0), window, summaryOptions(flags));
+                break;
+
+            case "search":
+                List<String> terms = new ArrayList<>();
+                Map<String, String> searchFlags = parseFlags(args, terms,
+                        Set.of("format"), Set.of("sorted"), SEARCH_USAGE);
+                if (terms.isEmpty()) {
+                    throw new MissingArgumentException(SEARCH_USAGE);
+                }
+                taskExecutor.search(String.join(" ", terms),
+                        summaryOptions(searchFlags));
+                break;
+
+            case "export":
+                if (args.length < 2) {
+                    throw new MissingArgumentException("export <csv file>");
+                }
+                taskExecutor.exportLog(args[1]);
+                break;
+
+            case "import":
+                if (args.length < 2) {
+                    throw new MissingArgumentException("import <csv file>");
+                }
+                taskExecutor.importLog(args[1]);
+                break;
+
+            case "compact":
+                taskExecutor.compact();
+                break;
+
+            case "metrics":
+                System.out.print(Metrics.prometheus());
+                break;
+
+            case "batch":
+                runBatch(args.length < 2 || args[1].equals("-") ? null :
+                        args[1]);
+                break;
+
+            default:
+                throw new IllegalArgumentException("Unknown command: "
+                        + command);
+        }
+    }
+
+    // Runs one command per line from the file, or stdin when null, against
+    // the tasks already in memory. A failing line is reported and the
+    // rest still run; their records reach the log in large writes.
+    private void runBatch(String path) {
+        int lineNumber = 0;
+        int failed = 0;
+        taskExecutor.beginBatch();
+        try (BufferedReader in = path == null ? new BufferedReader(
+                new InputStreamReader(System.in, StandardCharsets.UTF_8),
+                1 << 16) : Files.newBufferedReader(Paths.get(path))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                try {
+                    List<String> words = splitWords(line);
+                    // Case: blank and comment lines
+                    if (words.isEmpty() || words.get(0).startsWith("#")) {
+                        continue;
+                    }
+                    if (!BATCH_COMMANDS.contains(words.get(0)
+                            .toLowerCase(Locale.ROOT))) {
+                        throw new IllegalArgumentException("Not allowed "
+                                + "in a batch: " + words.get(0));
+                    }
+                    parseThenExecute(words.toArray(new String[0]));
+                } catch (Exception e) {
+                    failed++;
+                    System.err.println("Batch line " + lineNumber + ": "
+                            + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error reading batch: " + e.getMessage());
+        } finally {
+            taskExecutor.endBatch();
+        }
+        if (failed > 0) {
+            System.err.println(failed + " of the batch commands failed");
+        }
+    }
+
+    // Splits a batch line on whitespace, double quotes keep a word whole
+    static List<String> splitWords(String line) {
+        List<String> words = new ArrayList<>();
+        StringBuilder word = new StringBuilder();
+        boolean quoted = false;
+        boolean inWord = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+                inWord = true;
+            } else if (!quoted && Character.isWhitespace(c)) {
+                if (inWord) {
+                    words.add(word.toString());
+                    word.setLength(0);
+                    inWord = false;
+                }
+            } else {
+                word.append(c);
+                inWord = true;
+            }
+        }
+        if (quoted) {
+            throw new IllegalArgumentException("Unterminated quote in: "
+                    + line);
+        }
+        if (inWord) {
+            words.add(word.toString());
+        }
+        return words;
+    }
+
+    private static SummaryOptions summaryOptions(Map<String, String> flags) {
+        return new SummaryOptions(parseTop(flags.get("top")),
+                flags.containsKey("sorted"),
+                SummaryFormat.parse(flags.get("format")),
+                flags.containsKey("stream"));
+    }
+
+    private static int parseTop(String top) {
+        if (top == null) {
+            return SummaryInfo.DEFAULT_TOP;
+        }
+        int k;
+        try {
+            k = Integer.parseInt(top);
+        } catch (NumberFormatException e) {
+            k = 0;
+        }
+        if (k <= 0) {
+            throw new IllegalArgumentException("--top must be a positive "
+                    + "number: " + top);
+        }
+        return k;
+    }
+
+    // Splits the arguments after the command into --name value or
+    // --name=value flags and operands
+    private static Map<String, String> parseFlags(String[] args,
+                                                  List<String> operands,
+                                                  Set<String> valued,
+                                                  Set<String> switches,
+                                                  String usage)
+            throws MissingArgumentException {
+        Map<String, String> flags = new HashMap<>();
+        for (int i = 1; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                operands.add(args[i]);
+                continue;
+            }
+            int equals = args[i].indexOf('=');
+            String name = (equals < 0 ? args[i].substring(2) :
+                    args[i].substring(2, equals)).toLowerCase(Locale.ROOT);
+            if (switches.contains(name) && equals < 0) {
+                flags.put(name, "true");
+            } else if (!valued.contains(name)) {
+                throw new IllegalArgumentException("Unknown option --"
+                        + name + ", usage: " + usage);
+            } else if (equals >= 0) {
+                flags.put(name, args[i].substring(equals + 1));
+            } else if (i + 1 < args.length) {
+                flags.put(name, args[++i]);
+            } else {
+                throw new MissingArgumentException(usage);
+            }
+        }
+        return flags;
+    }
+}
+
+class TaskExecutor {
+    private Map<String, Task> taskMap;
+    private TaskIndex index;
+    private TaskReplayer replayer;
+    private TaskLogParser logParser;
+    private final TaskLogger logger;
+    private final TaskLocks locks;
+    public TaskExecutor(TaskLogger logger, TaskLogParser logParser) {
+        this(logger, logParser, true);
+    }
+
+    // A deferred executor replays the log on first use, so a streaming
+    // summary never builds the tasks it does not report
+    public TaskExecutor(TaskLogger logger, TaskLogParser logParser,
+                        boolean eager) {
+        this(logger, logParser, eager, TaskLocks.NONE);
+    }
+
+    // With striped locks, start, stop, describe and size may run on
+    // different threads at once, each holding its task's stripe; any
+    // other command must hold locks.lockAll()
+    public TaskExecutor(TaskLogger logger, TaskLogParser logParser,
+                        boolean eager, TaskLocks locks) {
+        this.logger = logger;
+        this.logParser = logParser;
+        this.locks = locks;
+        if (eager) {
+            reload(logParser);
+        }
+    }
+
+    public void reload(TaskLogParser logParser) {
+        this.logParser = logParser;
+        Metrics.Timer timer = Metrics.time(Metrics.Phase.PARSE);
+        try {
+            Map<String, Task> parsed = logParser.parseLogFile();
+            this.taskMap = locks.isStriped() ?
+                    new ConcurrentHashMap<>(parsed) : parsed;
+        } finally {
+            timer.close();
+        }
+        Metrics.add(Metrics.Counter.TASKS_LOADED, taskMap.size());
+        this.index = new TaskIndex(taskMap);
+        this.replayer = new TaskReplayer(taskMap, ErrorReporter.STDERR,
+                index);
+    }
+
+    private Map<String, Task> tasks() {
+        if (taskMap == null) {
+            reload(logParser);
+        }
+        return taskMap;
+    }
+
+    // Looks the task up through the parser's index while nothing is
+    // loaded, so a command on one task does not build the others
+    private Task find(String taskName) {
+        if (taskMap == null && logParser.hasIndex()) {
+            Task task;
+            Metrics.Timer timer = Metrics.time(Metrics.Phase.PARSE);
+            try {
+                task = logParser.lookup(TaskNames.fold(taskName));
+            } finally {
+                timer.close();
+            }
+            Metrics.add(Metrics.Counter.TASKS_LOADED, task == null ? 0 : 1);
+            return task;
+        }
+        return tasks().get(TaskNames.fold(taskName));
+    }
+
+    // Appends the action and applies it to the in-memory tasks, so a
+    // resident executor stays in step with the log
+    private void record(String taskName, LogCommand command,
+                        String description, String size) {
+        Instant now = Instant.now();
+        Metrics.Timer timer = Metrics.time(Metrics.Phase.APPEND);
+        try {
+            logger.logAction(now, taskName, command.keyword(), description,
+                    size);
+        } finally {
+            timer.close();
+        }
+        if (replayer != null) {
+            replayer.apply(new LogRecord(now.getEpochSecond(),
+                    TaskNames.fold(taskName), command, description,
+                    size == null ? null : size.toUpperCase(Locale.ROOT)), 0);
+        }
+    }
+
+    public void startTask(String taskName) throws IllegalCommandException {
+        ReentrantLock stripe = locks.lockTask(taskName);
+        try {
+            Task task = find(taskName);
+            if(task != null && !task.lastEntryStopped()){
+                throw new IllegalCommandException(taskName,
+                        "has not been stopped");
+            }
+            record(taskName, LogCommand.START, null, null);
+        } finally {
+            locks.unlockTask(stripe);
+        }
+    }
+
+    public void stopTask(String taskName) throws IllegalCommandException {
+        ReentrantLock stripe = locks.lockTask(taskName);
+        try {
+            Task task = find(taskName);
+            if(task == null || task.lastEntryStopped()){
+                throw new IllegalCommandException(taskName,
+                        "has not been started");
+            }
+            record(taskName, LogCommand.STOP, null, null);
+        } finally {
+            locks.unlockTask(stripe);
+        }
+    }
+
+    public void describe(String taskName, String description, String size)
+            throws IllegalCommandException {
+        ReentrantLock stripe = locks.lockTask(taskName);
+        try {
+            Task task = find(taskName);
+            if(task == null){
+                throw new IllegalCommandException(taskName,
+                        "does not exist");
+            }
+            record(taskName, LogCommand.DESCRIBE, description, size);
+        } finally {
+            locks.unlockTask(stripe);
+        }
+    }
+
+    public void size(String taskName, String size)
+            throws IllegalCommandException {
+        ReentrantLock stripe = locks.lockTask(taskName);
+        try {
+            Task task = find(taskName);
+            if(task == null){
+                throw new IllegalCommandException(taskName,
+                        "does not exist");
+            } else if (!Task.isValidSize(size)){
+                throw new IllegalCommandException(taskName,
+                        "invalid size");
+            }
+            record(taskName, LogCommand.SIZE, null, size);
+        } finally {
+            locks.unlockTask(stripe);
+        }
+    }
+
+    public void summary(String arg)
+            throws IllegalCommandException {
+        summary(arg, null);
+    }
+
+    public void summary(String arg, SummaryWindow window)
+            throws IllegalCommandException {
+        summary(arg, window, SummaryOptions.DEFAULT);
+    }
+
+    public void summary(String arg, SummaryWindow window,
+                        SummaryOptions options)
+            throws IllegalCommandException {
+        SummaryStrategy strategy;
+        if (window != null) {
+            strategy = new SummaryByWindow(selectTasks(arg, options),
+                    window);
+        } else if (arg == null) {
+            strategy = new SummaryForAll(new SummaryInfo(
+                    options.order(tasks().values())), options.getTop());
+        } else if (Task.isValidSize(arg)) {
+            strategy = new SummaryBySize(new SummaryInfo(
+                    options.order(selectTasks(arg, options))),
+                    arg.toUpperCase(Locale.ROOT), options.getTop());
+        } else {
+            strategy = new SummaryByName(selectTasks(arg, options)
+                    .iterator().next());
+        }
+        Metrics.Timer timer = Metrics.time(Metrics.Phase.RENDER);
+        try (SummaryWriter out = options.getFormat().writer(System.out)) {
+            strategy.generateSummary(out);
+        } finally {
+            timer.close();
+        }
+    }
+
+    // Tasks named by arg, of the size arg, or all tasks when null. A
+    // streaming summary, or one over an indexed log, reads only those when
+    // nothing is loaded yet.
+    private Collection<Task> selectTasks(String arg, SummaryOptions options)
+            throws IllegalCommandException {
+        if (arg == null) {
+            return tasks().values();
+        }
+        boolean size = Task.isValidSize(arg);
+        Collection<Task> tasks;
+        if (taskMap == null && (options.isStreaming()
+                || size && logParser.hasIndex())) {
+            String upper = arg.toUpperCase(Locale.ROOT);
+            String folded = TaskNames.fold(arg);
+            Metrics.Timer timer = Metrics.time(Metrics.Phase.PARSE);
+            try {
+                tasks = logParser.parseMatching(size ?
+                        (name, taskSize) -> upper.equals(taskSize) :
+                        (name, taskSize) -> name.equals(folded)).values();
+            } finally {
+                timer.close();
+            }
+            Metrics.add(Metrics.Counter.TASKS_LOADED, tasks.size());
+        } else if (size) {
+            tasks();
+            tasks = index.withSize(arg);
+        } else {
+            Task task = find(arg);
+            tasks = task == null ? List.of() : List.of(task);
+        }
+        if (!size && tasks.isEmpty()) {
+            throw new IllegalCommandException(arg, "does not exist");
+        }
+        return tasks;
+    }
+
+    public void search(String terms, SummaryOptions options) {
+        if (TaskIndex.tokens(terms).isEmpty()) {
+            throw new IllegalArgumentException("No search terms in: "
+                    + terms);
+        }
+        tasks();
+        SummaryStrategy strategy = new SummaryBySearch(new SummaryInfo(
+                options.order(index.search(terms))), terms);
+        Metrics.Timer timer = Metrics.time(Metrics.Phase.RENDER);
+        try (SummaryWriter out = options.getFormat().writer(System.out)) {
+            strategy.generateSummary(out);
+        } finally {
+            timer.close();
+        }
+    }
+
+    // Redraws a live summary of the tasks named by arg, of the size arg or
+    // of all tasks whenever the log changes, and every second while a
+    // session is open. Appended records are replayed into the resident
+    // tasks; a truncated or rewritten log is parsed again. Runs until the
+    // process is stopped.
+    public void watch(String arg, Path logPath) {
+        tasks();
+        WatchScreen screen = new WatchScreen(System.out,
+                System.console() != null);
+        Path dir = Files.isDirectory(logPath) ? logPath :
+                logPath.toAbsolutePath().getParent();
+        try (WatchService watcher = dir.getFileSystem().newWatchService()) {
+            dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+            LogState state = LogState.of(logPath);
+            while (true) {
+                screen.show(renderLive(arg, logPath));
+                WatchKey key = watcher.poll(1, TimeUnit.SECONDS);
+                if (key != null) {
+                    key.pollEvents();
+                    key.reset();
+                }
+                LogState current = LogState.of(logPath);
+                if (current.equals(state)) {
+                    continue;
+                }
+                state = current;
+                boolean appended;
+                Metrics.Timer timer = Metrics.time(Metrics.Phase.PARSE);
+                try {
+                    appended = logParser.parseAppended(replayer);
+                } finally {
+                    timer.close();
+                }
+                if (!appended) {
+                    reload(logParser);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error watching the log file: "
+                    + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private List<String> renderLive(String arg, Path logPath) {
+        Collection<Task> tasks;
+        if (arg == null) {
+            tasks = taskMap.values();
+        } else if (Task.isValidSize(arg)) {
+            tasks = index.withSize(arg);
+        } else {
+            Task task = taskMap.get(TaskNames.fold(arg));
+            tasks = task == null ? List.of() : List.of(task);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(bytes, false,
+                StandardCharsets.UTF_8);
+        Metrics.Timer timer = Metrics.time(Metrics.Phase.RENDER);
+        try (SummaryWriter writer = new TableSummaryWriter(out)) {
+            writer.text("Watching " + logPath + ", Ctrl-C to stop");
+            writer.text("");
+            new SummaryLive(tasks, Instant.now().getEpochSecond())
+                    .generateSummary(writer);
+        } finally {
+            timer.close();
+        }
+        out.flush();
+        return List.of(bytes.toString(StandardCharsets.UTF_8)
+                .split("\\R"));
+    }
+
+    public void delete(String taskName)
+            throws IllegalCommandException {
+        Task task = find(taskName);
+        if(task == null){
+            throw new IllegalCommandException(taskName,
+                    "does not exist");
+        }
+        Metrics.Timer timer = Metrics.time(Metrics.Phase.APPEND);
+        try {
+            logger.deleteTasks(taskName);
+        } finally {
+            timer.close();
+        }
+        if (replayer != null) {
+            replayer.delete(TaskNames.fold(taskName), 0);
+        }
+    }
+
+    public void rename(String oldName, String newName)
+            throws IllegalCommandException {
+        Task newTask = find(newName);
+        Task oldTask = find(oldName);
+        if(oldTask == null){
+            throw new IllegalCommandException(oldName,
+                    "does not exist");
+        } else if (newTask != null){
+            throw new IllegalCommandException(newName,
+                    "already exists");
+        }
+        Metrics.Timer timer = Metrics.time(Metrics.Phase.APPEND);
+        try {
+            logger.renameTasks(oldName, newName);
+        } finally {
+            timer.close();
+        }
+        if (replayer != null) {
+            replayer.rename(TaskNames.fold(oldName), TaskNames.fold(newName),
+                    0);
+        }
+    }
+
+    public void exportLog(String csvPath) {
+        logger.exportLog(csvPath);
+    }
+
+    public void importLog(String csvPath) {
+        logger.importLog(csvPath);
+    }
+
+    public void compact() {
+        logger.compact();
+    }
+
+    public void beginBatch() {
+        tasks();
+        logger.beginBatch();
+    }
+
+    public void endBatch() {
+        logger.endBatch();
+    }
+}
+
+class Logger implements TaskLogger {
+    private static final int BATCH_BYTES = 1 << 20;
+
+    private final String logFilePath;
+    private final LogWriter writer;
+    // Entries held back while a batch runs, null otherwise
+    private ByteArrayOutputStream batch;
+    public Logger(String logFilePath) {
+        this(logFilePath, false, Durability.NONE);
+    }
+
+    // A resident logger keeps its append channel open between actions
+    public Logger(String logFilePath, boolean resident,
+                  Durability durability) {
+        this(logFilePath, resident, durability, RolloverPolicy.NEVER);
+    }
+
+    public Logger(String logFilePath, boolean resident,
+                  Durability durability, RolloverPolicy rollover) {
+        this.logFilePath = logFilePath;
+        this.writer = new LogWriter(Paths.get(logFilePath), durability,
+                resident, rollover);
+        createLogIfNotExist();
+    }
+
+    private void createLogIfNotExist() {
+        File file = new File(this.logFilePath);
+        if (!file.exists()) {
+            try {
+                boolean created = file.createNewFile();
+                if (!created) {
+                    throw new IOException("File already exists.");
+                }
+            } catch (IOException e) {
+                System.err.println("Error creating log file: "
+                        + e.getMessage());
+            }
+        }
+    }
+
+    // Renames and deletes are appended as tombstones that replay honors,
+    // compact() drops the records they made dead
+    public void renameTasks(String oldName, String newName) {
+        logAction(Instant.now(), oldName, LogCommand.RENAME.keyword(),
+                newName, null);
+    }
+
+    public void deleteTasks(String taskName) {
+        logAction(Instant.now(), taskName, LogCommand.DELETE.keyword(),
+                null, null);
+    }
+
+    public void compact() {
+        Path path = Paths.get(logFilePath);
+        try {
+            LogLock.of(path).withLock(() -> {
+                // Case: Replay everything after the sealed history,
+                // remembering which task owns each surviving line
+                LogSegments.SealedState sealed = LogSegments.load(path);
+                Map<String, Task> taskMap = sealed.taskMap;
+                TaskReplayer replayer = new TaskReplayer(taskMap,
+                        (lineNum, message) -> {});
+                TaskNames names = new TaskNames();
+                List<Task> owners = new ArrayList<>();
+                try (FileChannel channel = FileChannel.open(path,
+                        StandardOpenOption.READ)) {
+                    new LogLineReader(channel).read(0, 1,
+                            (buf, start, end, position, next, lineNum) -> {
+                        LogRecord record = LogLineReader.isBlank(buf, start,
+                                end) ? null : LogParser.tokenize(buf, start,
+                                end, names);
+                        Task owner = null;
+                        if (record != null && replayer.apply(record, lineNum)
+                                && record.getCommand() != LogCommand.RENAME
+                                && record.getCommand() != LogCommand.DELETE) {
+                            owner = taskMap.get(record.getName());
+                        }
+                        owners.add(owner);
+                    });
+                }
+
+                // Case: Keep lines of live tasks under their final names
+                byte[] comma = {','};
+                int[] kept = new int[1];
+                long size = LogFiles.atomicRewrite(path,
+                        (buf, start, end, lineNum, out) -> {
+                    Task owner = owners.get(lineNum - 1);
+                    if (owner == null || taskMap.get(owner.getName())
+                            != owner) {
+                        return;
+                    }
+                    int timeEnd = LogLineReader.indexOf(buf, ',', start, end);
+                    int nameEnd = LogLineReader.indexOf(buf, ',',
+                            timeEnd + 1, end);
+                    if (LogLineReader.equalsIgnoreCase(buf, timeEnd + 1,
+                            nameEnd, owner.getName())) {
+                        out.write(buf, start, end - start);
+                    } else {
+                        out.write(buf, start, timeEnd - start);
+                        out.write(comma);
+                        out.write(owner.getName()
+                                .getBytes(StandardCharsets.UTF_8));
+                        out.write(buf, nameEnd, end - nameEnd);
+                    }
+                    out.write('\n');
+                    kept[0]++;
+                });
+                LogSnapshot.write(path, taskMap, size, kept[0],
+                        sealed.generation);
+                return null;
+            });
+        } catch (IOException e) {
+            System.err.println("Error compacting log file: "
+                    + e.getMessage());
+        }
+    }
+
+    // Segments that are not folded yet are exported ahead of the active
+    // log, folded history only survives as aggregates and is left out
+    public void exportLog(String csvPath) {
+        Path path = Paths.get(logFilePath);
+        try {
+            LogLock.of(path).withLock(() -> {
+                LogSegments.SealedState sealed = LogSegments.load(path);
+                if (sealed.folded > 0) {
+                    System.err.println("Sessions folded into "
+                            + LogSegments.sealedPath(path).getFileName()
+                            + " are not exported");
+                }
+                try (FileChannel target = FileChannel.open(Paths.get(csvPath),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+                    for (long number = sealed.folded + 1;
+                         number <= sealed.generation; number++) {
+                        LogFiles.copyInto(LogSegments.segmentPath(path,
+                                number), target);
+                    }
+                    LogFiles.copyInto(path, target);
+                }
+                return null;
+            });
+        } catch (IOException e) {
+            System.err.println("Error exporting log file: " + e.getMessage());
+        }
+    }
+
+    public void importLog(String csvPath) {
+        Path path = Paths.get(logFilePath);
+        try {
+            LogLock.of(path).withLock(() -> {
+                Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+                try (OutputStream out = new BufferedOutputStream(
+                        Files.newOutputStream(temp))) {
+                    LogParser.readImport(Paths.get(csvPath),
+                            (record, buf, start, end) -> {
+                        out.write(buf, start, end - start);
+                        out.write('\n');
+                    });
+                }
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                LogSegments.clear(path);
+                LogSnapshot.invalidate(path);
+                return null;
+            });
+        } catch (IOException e) {
+            System.err.println("Error importing log file: " + e.getMessage());
+        }
+    }
+
+    public void logAction(Instant time, String taskName, String command,
+                          String description, String size) {
+        String logEntry = String.format("%s,%s,%s,%s,%s%n",
+                time.toString(), taskName, command, description, size);
+        byte[] entry = logEntry.getBytes(StandardCharsets.UTF_8);
+        if (batch != null) {
+            batch.writeBytes(entry);
+            if (batch.size() >= BATCH_BYTES) {
+                flushBatch();
+            }
+            return;
+        }
+        try {
+            writer.append(entry);
+        } catch (IOException e) {
+            System.err.println("Error writing to log file: " + e.getMessage());
+        }
+    }
+
+    public void beginBatch() {
+        batch = new ByteArrayOutputStream();
+    }
+
+    public void endBatch() {
+        flushBatch();
+        batch = null;
+    }
+
+    private void flushBatch() {
+        if (batch == null || batch.size() == 0) {
+            return;
+        }
+        try {
+            writer.append(batch.toByteArray());
+        } catch (IOException e) {
+            System.err.println("Error writing to log file: " + e.getMessage());
+        }
+        batch.reset();
+    }
+}
+
+enum ValidationMode {
+    // Remove malformed lines from the log
+    REPAIR,
+    // Skip malformed lines in memory, never touch the log
+    REPORT
+}
+
+class LogParser implements TaskLogParser {
+    static final long PARALLEL_BYTES = 64L << 20;
+    private static final int MAX_ATTEMPTS = 8;
+
+    private final Map<String, Task> taskMap;
+    private final String logFilePath;
+    private final ValidationMode mode;
+    private final boolean parallel;
+    // Where the last replay of the active log stopped, -1 when it ended
+    // in a partial line or the log was rewritten
+    private long tailPosition = -1;
+    private int tailLineNumber;
+    private Object tailFileKey;
+    private final TaskNames names = new TaskNames();
+    public LogParser(String logFilePath, ValidationMode mode) {
+        this(logFilePath, mode, false);
+    }
+
+    public LogParser(String logFilePath, ValidationMode mode,
+                     boolean parallel) {
+        this.taskMap = new HashMap<>();
+        this.logFilePath = logFilePath;
+        this.mode = mode;
+        this.parallel = parallel;
+    }
+
+    public Map<String, Task> parseLogFile() {
+        Path path = Paths.get(logFilePath);
+        // Case: a rollover sealed the active log while it was replayed
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            taskMap.clear();
+            long generation = replay(path);
+            if (generation < 0 || generation == generation(path)) {
+                break;
+            }
+        }
+        return taskMap;
+    }
+
+    // Replays the sealed history and the active log, returns the sealed
+    // generation the tasks include or -1 on error
+    private long replay(Path path) {
+        List<long[]> removedRanges = new ArrayList<>();
+        tailPosition = -1;
+        try {
+            long generation = LogSegments.generation(path);
+            if (generation > 0) {
+                LogSegments.resumeFold(path, generation);
+            }
+            // Case: read before the snapshot is checked against the log, so
+            // a log replaced from then on is never snapshotted as this one
+            Object fileKey = fileKey(path);
+            LogSnapshot snapshot = LogSnapshot.load(path);
+            long offset = 0;
+            int lineNumber = 1;
+            if (snapshot != null && snapshot.getGeneration() == generation) {
+                taskMap.putAll(snapshot.getTaskMap());
+                offset = snapshot.getOffset();
+                lineNumber = snapshot.getLineCount() + 1;
+            } else {
+                snapshot = null;
+                if (generation > 0) {
+                    LogSegments.SealedState sealed = LogSegments.load(path);
+                    taskMap.putAll(sealed.taskMap);
+                    generation = sealed.generation;
+                }
+            }
+
+            // Case: Only replay the lines the snapshot does not cover
+            long endPosition;
+            int nextLineNumber;
+            boolean terminated;
+            if (parallel || (Files.size(path) - offset >= PARALLEL_BYTES
+                    && ForkJoinPool.getCommonPoolParallelism() > 1)) {
+                ParallelLogReplay replay = new ParallelLogReplay(path,
+                        taskMap, ErrorReporter.of(mode));
+                replay.replay(offset, lineNumber);
+                removedRanges.addAll(replay.getRemovedRanges());
+                endPosition = replay.getEndPosition();
+                nextLineNumber = replay.getNextLineNumber();
+                terminated = replay.isTerminated();
+            } else {
+                TaskReplayer replayer = new TaskReplayer(taskMap,
+                        ErrorReporter.of(mode));
+                LogLineReader reader;
+                try (FileChannel channel = FileChannel.open(path,
+                        StandardOpenOption.READ)) {
+                    reader = new LogLineReader(channel);
+                    reader.read(offset, lineNumber,
+                            (buf, start, end, position, next, lineNum) -> {
+                        if (!parseLogLine(replayer, buf, start, end,
+                                lineNum)) {
+                            removedRanges.add(new long[]{position, next});
+                        }
+                    });
+                }
+                endPosition = reader.getEndPosition();
+                nextLineNumber = reader.getNextLineNumber();
+                terminated = reader.isTerminated();
+            }
+            tailPosition = terminated ? endPosition : -1;
+            tailLineNumber = nextLineNumber;
+            tailFileKey = fileKey;
+            long tailSize = endPosition - offset;
+            int lineCount = nextLineNumber - 1 - removedRanges.size();
+            Metrics.add(Metrics.Counter.MALFORMED_LINES,
+                    removedRanges.size());
+
+            // Case: Healthy log, leave its bytes untouched
+            long covered = endPosition;
+            Object[] coveredKey = {fileKey};
+            if (!removedRanges.isEmpty() || !terminated) {
+                if (mode == ValidationMode.REPORT) {
+                    reportKept(removedRanges.size());
+                    return generation;
+                }
+                tailPosition = -1;
+                Metrics.Timer timer = Metrics.time(Metrics.Phase.REPAIR);
+                try {
+                    covered = LogLock.of(path).withLock(() -> {
+                        // Case: another writer replaced the log since it
+                        // was read
+                        if (!Objects.equals(fileKey, fileKey(path))) {
+                            return -1L;
+                        }
+                        long size = !removedRanges.isEmpty() ?
+                                LogFiles.atomicRewrite(path, removedRanges) :
+                                LogFiles.terminateLastLine(path);
+                        coveredKey[0] = fileKey(path);
+                        return size;
+                    });
+                } finally {
+                    timer.close();
+                }
+                if (covered < 0) {
+                    return generation;
+                }
+                Metrics.add(Metrics.Counter.LINES_REMOVED,
+                        removedRanges.size());
+            }
+
+            if (snapshot == null || !removedRanges.isEmpty()
+                    || tailSize >= LogSnapshot.REBUILD_BYTES) {
+                writeSnapshot(path, coveredKey[0], covered, lineCount,
+                        generation);
+            }
+            return generation;
+        } catch (IOException e) {
+            System.err.println("Error reading the log file: "
+                    + e.getMessage());
+            return -1;
+        }
+    }
+
+    static void reportKept(int malformed) {
+        if (malformed > 0) {
+            System.err.println(malformed + " malformed "
+                    + (malformed == 1 ? "line" : "lines") + " left in the"
+                    + " log; run a modifying command or compact to repair");
+        }
+    }
+
+    // Writes the snapshot under the log lock and only while the log is
+    // still the file that was replayed, so the fingerprint it takes covers
+    // the bytes the tasks came from rather than a compact, repair, import
+    // or rollover that replaced them
+    private void writeSnapshot(Path path, Object fileKey, long covered,
+                               int lineCount, long generation) {
+        try {
+            LogLock.of(path).withLock(() -> {
+                if (Objects.equals(fileKey, fileKey(path))
+                        && Files.size(path) >= covered) {
+                    LogSnapshot.write(path, taskMap, covered, lineCount,
+                            generation);
+                }
+                return null;
+            });
+        } catch (IOException e) {
+            System.err.println("Error writing snapshot: " + e.getMessage());
+        }
+    }
+
+    private static Object fileKey(Path path) throws IOException {
+        return Files.readAttributes(path, BasicFileAttributes.class)
+                .fileKey();
+    }
+
+    // Streams the log twice instead of loading the snapshot, so only the
+    // matching tasks are ever built
+    @Override
+    public Map<String, Task> parseMatching(
+            BiPredicate<String, String> filter) {
+        return new FilteredLogReplay(Paths.get(logFilePath)).replay(filter);
+    }
+
+    // Replays the complete lines written after the last replay, leaving
+    // a partial last line for the next call
+    @Override
+    public boolean parseAppended(TaskReplayer replayer) {
+        Path path = Paths.get(logFilePath);
+        if (tailPosition < 0) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.READ)) {
+            Object fileKey = fileKey(path);
+            long size = channel.size();
+            // Case: the log was truncated or replaced since it was read
+            if (!Objects.equals(fileKey, tailFileKey)
+                    || size < tailPosition) {
+                return false;
+            }
+            long limit = lastLineEnd(channel, tailPosition, size);
+            if (limit > tailPosition) {
+                LogLineReader reader = new LogLineReader(channel);
+                reader.read(tailPosition, limit, tailLineNumber,
+                        (buf, start, end, position, next, lineNum) ->
+                                parseLogLine(replayer, buf, start, end,
+                                        lineNum));
+                tailPosition = reader.getEndPosition();
+                tailLineNumber = reader.getNextLineNumber();
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Position after the last newline in [from, size), from when none
+    private static long lastLineEnd(FileChannel channel, long from,
+                                    long size) throws IOException {
+        ByteBuffer block = ByteBuffer.allocate(8192);
+        long end = size;
+        while (end > from) {
+            long start = Math.max(from, end - block.capacity());
+            block.clear().limit((int) (end - start));
+            while (block.hasRemaining() && channel.read(block,
+                    start + block.position()) > 0) {
+            }
+            for (int i = block.position() - 1; i >= 0; i--) {
+                if (block.get(i) == '\n') {
+                    return start + i + 1;
+                }
+            }
+            end = start;
+        }
+        return from;
+    }
+
+    private static long generation(Path path) {
+        try {
+            return LogSegments.generation(path);
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private boolean parseLogLine(TaskReplayer replayer, byte[] buf,
+                                 int start, int end, int lineNum) {
+        if (LogLineReader.isBlank(buf, start, end)) { return false; }
+        LogRecord record = tokenize(buf, start, end, names);
+        if (record == null) {
+            ErrorReporter reporter = ErrorReporter.of(mode);
+            reporter.report(lineNum, malformed(new String(buf, start,
+                    end - start, StandardCharsets.UTF_8), lineNum, reporter));
+            return false;
+        }
+        return replayer.apply(record, lineNum);
+    }
+
+    interface ImportHandler {
+        void onRecord(LogRecord record, byte[] buf, int start, int end)
+                throws IOException;
+    }
+
+    // Reads a CSV log to import, handing over only the records a replay of
+    // it accepts. The rest are reported and left out, so the imported log
+    // has no malformed lines to report on every read.
+    static void readImport(Path csv, ImportHandler handler)
+            throws IOException {
+        TaskReplayer replayer = new TaskReplayer(new HashMap<>(),
+                (lineNum, message) -> System.err.println(message
+                        + " while importing"));
+        TaskNames names = new TaskNames();
+        try (FileChannel channel = FileChannel.open(csv,
+                StandardOpenOption.READ)) {
+            new LogLineReader(channel).read(0, 1,
+                    (buf, start, end, position, next, lineNum) -> {
+                if (LogLineReader.isBlank(buf, start, end)) {
+                    return;
+                }
+                LogRecord record = tokenize(buf, start, end, names);
+                if (record == null) {
+                    System.err.println(malformed(new String(buf, start,
+                            end - start, StandardCharsets.UTF_8), lineNum)
+                            + " while importing");
+                } else if (replayer.apply(record, lineNum)) {
+                    handler.onRecord(record, buf, start, end);
+                }
+            });
+        }
+    }
+
+    static String malformed(String line, int lineNum) {
+        return malformed(line, lineNum, ErrorReporter.STDERR);
+    }
+
+    static String malformed(String line, int lineNum,
+                            ErrorReporter reporter) {
+        return "Malformed at line " + lineNum + ", " + reporter.verdict()
+                + " <" + line + ">";
+    }
+
+    // Splits time,name,command,description...,size in place, null when
+    // the line is malformed. Task names come from names, folded.
+    static LogRecord tokenize(byte[] buf, int start, int end,
+                              TaskNames names) {
+        int timeEnd = LogLineReader.indexOf(buf, ',', start, end);
+        int nameEnd = timeEnd < 0 ? -1 :
+                LogLineReader.indexOf(buf, ',', timeEnd + 1, end);
+        int commandEnd = nameEnd < 0 ? -1 :
+                LogLineReader.indexOf(buf, ',', nameEnd + 1, end);
+        int descEnd = commandEnd < 0 ? -1 :
+                LogLineReader.lastIndexOf(buf, ',', commandEnd + 1, end);
+        if (descEnd < 0) {
+            return null;
+        }
+
+        long time = Timestamps.parseEpochSecond(buf, start, timeEnd);
+        LogCommand command = LogCommand.parse(buf, nameEnd + 1, commandEnd);
+        String name = names.intern(buf, timeEnd + 1, nameEnd);
+        String size = TaskReplayer.parseSize(buf, descEnd + 1, end);
+        // A rename carries the new task name in the description field
+        String desc = command == LogCommand.DESCRIBE
+                || command == LogCommand.RENAME ?
+                new String(buf, commandEnd + 1, descEnd - commandEnd - 1,
+                        StandardCharsets.UTF_8) : null;
+        if (command == LogCommand.RENAME) {
+            desc = names.intern(desc);
+        }
+        if (!validArgs(time, name, command, desc, size)) {
+            return null;
+        }
+        return new LogRecord(time, name, command, desc, size);
+    }
+
+    private static boolean validArgs(long time, String name,
+                                     LogCommand command, String desc,
+                                     String size) {
+        // Valid Time, Name and Command required for all commands
+        if (time == Long.MIN_VALUE || command == null || name.isEmpty()
+                || name.equals("null")
+                || size == TaskReplayer.INVALID_SIZE) {
+            return false;
+        }
+
+        switch (command) {
+            case SIZE:
+                // TShirtSize is required
+                return size != null;
+            case RENAME:
+                // New name is required, sizes are not allowed
+                return size == null && !desc.isEmpty()
+                        && !desc.equals("null");
+            case DELETE:
+                return size == null;
+            default:
+                return true;
+        }
+    }
+}
+
+// Replays a CSV log for only the tasks whose final name and size pass a
+// filter. A first pass keeps just the name and size of each live task, to
+// learn which tasks match and which names they had before any renames; a
+// second pass replays only the records of those names, so sessions and
+// aggregates are built for the matching tasks alone.
+class FilteredLogReplay {
+    private static final int MAX_ATTEMPTS = 8;
+
+    private interface Visitor {
+        // Tasks restored from the sealed history, before any record
+        void onTask(Task task);
+
+        void onRecord(LogRecord record, long sequence, int lineNumber,
+                      boolean active);
+    }
+
+    private static class Rename {
+        final long sequence;
+        final String oldName;
+
+        Rename(long sequence, String oldName) {
+            this.sequence = sequence;
+            this.oldName = oldName;
+        }
+    }
+
+    private final Path path;
+    // What the first pass read, the second must read the same
+    private long folded;
+    private List<Long> segments;
+    private Object fileKey;
+    private long endPosition;
+
+    public FilteredLogReplay(Path path) {
+        this.path = path;
+    }
+
+    public Map<String, Task> replay(BiPredicate<String, String> filter) {
+        try {
+            // Case: a rollover, fold or rewrite happened between the passes
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    Map<String, Task> tasks = replayOnce(filter);
+                    if (tasks != null) {
+                        return tasks;
+                    }
+                } catch (NoSuchFileException e) {
+                    if (attempt >= MAX_ATTEMPTS) {
+                        throw e;
+                    }
+                    continue;
+                }
+                if (attempt >= MAX_ATTEMPTS) {
+                    throw new IOException("log kept changing while read");
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error reading the log file: "
+                    + e.getMessage());
+            return new HashMap<>();
+        }
+    }
+
+    // Null when the log changed between the passes
+    private Map<String, Task> replayOnce(BiPredicate<String, String> filter)
+            throws IOException {
+        // Live task name -> size
+        Map<String, String> sizes = new HashMap<>();
+        // New name -> renames to it, in order
+        Map<String, List<Rename>> renames = new HashMap<>();
+        Set<Long> rejected = new HashSet<>();
+        boolean complete = scan(true, new Visitor() {
+            @Override
+            public void onTask(Task task) {
+                sizes.put(task.getName(), task.getSize());
+            }
+
+            @Override
+            public void onRecord(LogRecord record, long sequence,
+                                 int lineNumber, boolean active) {
+                String name = record.getName();
+                switch (record.getCommand()) {
+                    case START:
+                        sizes.putIfAbsent(name, null);
+                        break;
+                    case DESCRIBE:
+                    case SIZE:
+                        if (record.getSize() != null
+                                && sizes.containsKey(name)) {
+                            sizes.put(name, record.getSize());
+                        }
+                        break;
+                    case RENAME:
+                        String newName = record.getDescription();
+                        if (!sizes.containsKey(name)
+                                || sizes.containsKey(newName)) {
+                            rejected.add(sequence);
+                            break;
+                        }
+                        sizes.put(newName, sizes.remove(name));
+                        renames.computeIfAbsent(newName,
+                                n -> new ArrayList<>())
+                                .add(new Rename(sequence, name));
+                        break;
+                    case DELETE:
+                        sizes.remove(name);
+                        break;
+                    default:
+                        break;
+                }
+            }
+        });
+        if (!complete) {
+            return null;
+        }
+
+        Set<String> matches = new HashSet<>();
+        // Name -> inclusive sequence ranges its records belong to a match
+        Map<String, List<long[]>> tracked = new HashMap<>();
+        for (Map.Entry<String, String> task : sizes.entrySet()) {
+            if (filter.test(task.getKey(), task.getValue())) {
+                matches.add(task.getKey());
+                trackLineage(task.getKey(), renames, tracked);
+            }
+        }
+        sizes.clear();
+
+        Map<String, Task> taskMap = new HashMap<>();
+        TaskReplayer replayer = new TaskReplayer(taskMap,
+                ErrorReporter.STDERR_KEEPING);
+        // Errors were reported while the lines were in the active log
+        TaskReplayer sealedReplayer = new TaskReplayer(taskMap,
+                (lineNum, message) -> {});
+        complete = scan(false, new Visitor() {
+            @Override
+            public void onTask(Task task) {
+                if (isTracked(tracked, task.getName(), 0)) {
+                    taskMap.put(task.getName(), task);
+                }
+            }
+
+            @Override
+            public void onRecord(LogRecord record, long sequence,
+                                 int lineNumber, boolean active) {
+                boolean wanted = record.getCommand() == LogCommand.RENAME ?
+                        !rejected.contains(sequence)
+                                && isTracked(tracked, record.getName(),
+                                sequence) : isTracked(tracked,
+                        record.getName(), sequence);
+                if (wanted) {
+                    (active ? replayer : sealedReplayer).apply(record,
+                            lineNumber);
+                }
+            }
+        });
+        if (!complete) {
+            return null;
+        }
+        taskMap.keySet().retainAll(matches);
+        return taskMap;
+    }
+
+    // Walks back through the renames that led to name
+    private static void trackLineage(String name,
+                                     Map<String, List<Rename>> renames,
+                                     Map<String, List<long[]>> tracked) {
+        String current = name;
+        long to = Long.MAX_VALUE;
+        while (true) {
+            Rename into = null;
+            List<Rename> candidates = renames.getOrDefault(current,
+                    List.of());
+            for (int i = candidates.size() - 1; i >= 0 && into == null;
+                 i--) {
+                if (candidates.get(i).sequence < to) {
+                    into = candidates.get(i);
+                }
+            }
+            long from = into == null ? 0 : into.sequence;
+            tracked.computeIfAbsent(current, n -> new ArrayList<>())
+                    .add(new long[]{from, to});
+            if (into == null) {
+                return;
+            }
+            current = into.oldName;
+            to = into.sequence;
+        }
+    }
+
+    private static boolean isTracked(Map<String, List<long[]>> tracked,
+                                     String name, long sequence) {
+        List<long[]> ranges = tracked.get(name);
+        if (ranges == null) {
+            return false;
+        }
+        for (long[] range : ranges) {
+            if (sequence >= range[0] && sequence <= range[1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Visits the sealed tasks, the pending segments and the active log,
+    // returns false when they are not the ones the first pass read
+    private boolean scan(boolean first, Visitor visitor) throws IOException {
+        long base = LogSegments.readBase(path, visitor::onTask);
+        List<Long> pending = LogSegments.pendingSegments(path, base);
+        Object key = Files.exists(path) ? Files.readAttributes(path,
+                BasicFileAttributes.class).fileKey() : null;
+        if (first) {
+            // Case: a fold replaced the sealed file while it was read
+            if (!pending.isEmpty() && pending.get(0) != base + 1) {
+                return false;
+            }
+            folded = base;
+            segments = pending;
+            fileKey = key;
+        } else if (base != folded || !pending.equals(segments)
+                || !Objects.equals(key, fileKey)) {
+            return false;
+        }
+
+        long[] sequence = {0};
+        for (long number : pending) {
+            read(LogSegments.segmentPath(path, number), Long.MAX_VALUE,
+                    false, false, sequence, visitor);
+        }
+        if (key != null) {
+            long read = read(path, first ? Long.MAX_VALUE : endPosition,
+                    true, first, sequence, visitor);
+            if (first) {
+                endPosition = read;
+            }
+        }
+        return true;
+    }
+
+    // Returns the position reading stopped at
+    private static long read(Path file, long limit, boolean active,
+                             boolean report, long[] sequence,
+                             Visitor visitor) throws IOException {
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.READ)) {
+            LogLineReader reader = new LogLineReader(channel);
+            TaskNames names = new TaskNames();
+            reader.read(0, limit, 1,
+                    (buf, start, end, position, next, lineNum) -> {
+                if (LogLineReader.isBlank(buf, start, end)) {
+                    return;
+                }
+                LogRecord record = LogParser.tokenize(buf, start, end,
+                        names);
+                if (record != null) {
+                    visitor.onRecord(record, ++sequence[0], lineNum, active);
+                } else if (report) {
+                    Metrics.add(Metrics.Counter.MALFORMED_LINES, 1);
+                    ErrorReporter.STDERR_KEEPING.report(lineNum,
+                            LogParser.malformed(new String(buf, start,
+                                    end - start, StandardCharsets.UTF_8),
+                                    lineNum, ErrorReporter.STDERR_KEEPING));
+                }
+            });
+            return reader.getEndPosition();
+        }
+    }
+}
+
+class LogRecord {
+    private final long epochSecond;
+    private final String name;
+    private final LogCommand command;
+    private final String description;
+    private final String size;
+
+    public LogRecord(long epochSecond, String name, LogCommand command,
+                     String description, String size) {
+        this.epochSecond = epochSecond;
+        this.name = name;
+        this.command = command;
+        this.description = description;
+        this.size = size;
+    }
+
+    public long getEpochSecond() {
+        return epochSecond;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public LogCommand getCommand() {
+        return command;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public String getSize() {
+        return size;
+    }
+}
+
+// The one case folding rule for task names, and a table interning the
+// folded names read from a log. Each name gets a single canonical string;
+// a line naming a task seen before is matched by its bytes, so it
+// allocates nothing and the task maps are hit with a string whose hash is
+// cached and that equals itself by reference. A table is not thread safe,
+// parallel replays keep one per chunk.
+final class TaskNames {
+    // Open addressing, a slot is free while its name is null
+    private byte[][] keys = new byte[64][];
+    private int[] hashes = new int[64];
+    private String[] names = new String[64];
+    private int size;
+
+    static String fold(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    // The canonical folded form of the UTF-8 name in buf, added when new
+    public String intern(byte[] buf, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            // Case: only ASCII folds byte by byte, the rest through String
+            if (buf[i] < 0) {
+                byte[] folded = fold(new String(buf, start, end - start,
+                        StandardCharsets.UTF_8))
+                        .getBytes(StandardCharsets.UTF_8);
+                return probe(folded, 0, folded.length, hash(folded));
+            }
+            hash = 31 * hash + lower(buf[i]);
+        }
+        return probe(buf, start, end, hash);
+    }
+
+    public String intern(String name) {
+        byte[] folded = fold(name).getBytes(StandardCharsets.UTF_8);
+        return probe(folded, 0, folded.length, hash(folded));
+    }
+
+    private String probe(byte[] buf, int start, int end, int hash) {
+        int mask = names.length - 1;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while (names[slot] != null) {
+            if (hashes[slot] == hash && matches(keys[slot], buf, start,
+                    end)) {
+                return names[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        byte[] key = new byte[end - start];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = lower(buf[start + i]);
+        }
+        String name = new String(key, StandardCharsets.UTF_8);
+        keys[slot] = key;
+        hashes[slot] = hash;
+        names[slot] = name;
+        if (++size * 2 > names.length) {
+            rehash();
+        }
+        return name;
+    }
+
+    private void rehash() {
+        byte[][] oldKeys = keys;
+        int[] oldHashes = hashes;
+        String[] oldNames = names;
+        keys = new byte[oldNames.length * 2][];
+        hashes = new int[oldNames.length * 2];
+        names = new String[oldNames.length * 2];
+        int mask = names.length - 1;
+        for (int i = 0; i < oldNames.length; i++) {
+            if (oldNames[i] == null) {
+                continue;
+            }
+            int slot = (oldHashes[i] ^ (oldHashes[i] >>> 16)) & mask;
+            while (names[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = oldKeys[i];
+            hashes[slot] = oldHashes[i];
+            names[slot] = oldNames[i];
+        }
+    }
+
+    private static int hash(byte[] folded) {
+        int hash = 0;
+        for (byte b : folded) {
+            hash = 31 * hash + b;
+        }
+        return hash;
+    }
+
+    private static boolean matches(byte[] key, byte[] buf, int start,
+                                   int end) {
+        if (key.length != end - start) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (key[i] != lower(buf[start + i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte lower(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+}
+
+interface ErrorReporter {
+    ErrorReporter STDERR = (lineNum, message) -> System.err.println(message);
+    // For read-only replays, which leave malformed lines in the log
+    ErrorReporter STDERR_KEEPING = withVerdict(STDERR, "not removing line");
+
+    void report(int lineNum, String message);
+
+    // What becomes of the line reported, as its message words it
+    default String verdict() {
+        return "removing line";
+    }
+
+    static ErrorReporter of(ValidationMode mode) {
+        return mode == ValidationMode.REPAIR ? STDERR : STDERR_KEEPING;
+    }
+
+    static ErrorReporter withVerdict(ErrorReporter reporter, String verdict) {
+        return new ErrorReporter() {
+            @Override
+            public void report(int lineNum, String message) {
+                reporter.report(lineNum, message);
+            }
+
+            @Override
+            public String verdict() {
+                return verdict;
+            }
+        };
+    }
+}
+
+class ParallelLogReplay {
+    private static final int CHUNKS_PER_THREAD = 4;
+    private static final int MIN_CHUNK_BYTES = 1 << 20;
+
+    private final Path path;
+    private final Map<String, Task> taskMap;
+    private final ErrorReporter reporter;
+    private final List<long[]> removedRanges;
+    private long endPosition;
+    private int nextLineNumber;
+    private boolean terminated;
+
+    public ParallelLogReplay(Path path, Map<String, Task> taskMap,
+                             ErrorReporter reporter) {
+        this.path = path;
+        this.taskMap = taskMap;
+        this.reporter = reporter;
+        this.removedRanges = new ArrayList<>();
+    }
+
+    public void replay(long offset, int firstLineNumber) throws IOException {
+        List<Chunk> chunks;
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.READ)) {
+            chunks = split(channel, offset, channel.size());
+        }
+
+        // Tokenize chunks on the fork-join pool
+        Metrics.Scope scope = Metrics.scope();
+        chunks.parallelStream().forEach(chunk -> Metrics.within(scope,
+                () -> tokenize(chunk)));
+
+        // Number lines across chunks and group records by task, in order.
+        // Renames and deletes end an epoch: the records before them are
+        // replayed first, then the tombstone is applied to the whole map.
+        Map<String, List<Line>> byTask = new HashMap<>();
+        List<Line> failures = new ArrayList<>();
+        Line[] current = new Line[1];
+        TaskReplayer tombstones = new TaskReplayer(taskMap,
+                ErrorReporter.withVerdict((lineNum, message) ->
+                        current[0].message = message, reporter.verdict()));
+        int lineNumber = firstLineNumber;
+        for (Chunk chunk : chunks) {
+            for (Line line : chunk.failures) {
+                line.lineNumber += lineNumber;
+                if (line.malformedText != null) {
+                    line.message = LogParser.malformed(line.malformedText,
+                            line.lineNumber, reporter);
+                }
+            }
+            failures.addAll(chunk.failures);
+            for (Segment segment : chunk.segments) {
+                for (Map.Entry<String, List<Line>> entry
+                        : segment.byTask.entrySet()) {
+                    for (Line line : entry.getValue()) {
+                        line.lineNumber += lineNumber;
+                    }
+                    byTask.computeIfAbsent(entry.getKey(),
+                            name -> new ArrayList<>())
+                            .addAll(entry.getValue());
+                }
+                if (segment.tombstone != null) {
+                    replayEpoch(byTask, failures);
+                    byTask.clear();
+                    current[0] = segment.tombstone;
+                    current[0].lineNumber += lineNumber;
+                    if (!tombstones.apply(current[0].record,
+                            current[0].lineNumber)) {
+                        failures.add(current[0]);
+                    }
+                }
+            }
+            lineNumber += chunk.lineCount;
+        }
+        replayEpoch(byTask, failures);
+
+        // Report and remove in line order, like the sequential replay
+        failures.sort(Comparator.comparingInt(line -> line.lineNumber));
+        for (Line line : failures) {
+            if (line.message != null) {
+                reporter.report(line.lineNumber, line.message);
+            }
+            removedRanges.add(new long[]{line.position, line.next});
+        }
+
+        Chunk last = chunks.get(chunks.size() - 1);
+        endPosition = last.end;
+        nextLineNumber = lineNumber;
+        terminated = last.terminated;
+    }
+
+    // Replays every task's records independently
+    private void replayEpoch(Map<String, List<Line>> byTask,
+                             List<Line> failures) {
+        List<TaskResult> results = byTask.entrySet().parallelStream()
+                .map(entry -> replayTask(entry.getKey(), entry.getValue()))
+                .collect(Collectors.toList());
+
+        for (TaskResult result : results) {
+            if (result.task != null) {
+                taskMap.put(result.name, result.task);
+            }
+            failures.addAll(result.failures);
+        }
+    }
+
+    public List<long[]> getRemovedRanges() {
+        return removedRanges;
+    }
+
+    public long getEndPosition() {
+        return endPosition;
+    }
+
+    public int getNextLineNumber() {
+        return nextLineNumber;
+    }
+
+    public boolean isTerminated() {
+        return terminated;
+    }
+
+    // Cuts [offset, size) into chunks that start right after a newline
+    private List<Chunk> split(FileChannel channel, long offset, long size)
+            throws IOException {
+        int count = Math.max(1, (int) Math.min(
+                ForkJoinPool.getCommonPoolParallelism() * CHUNKS_PER_THREAD,
+                (size - offset) / MIN_CHUNK_BYTES));
+        List<Chunk> chunks = new ArrayList<>();
+        long start = offset;
+        ByteBuffer probe = ByteBuffer.allocate(8192);
+        for (int i = 1; i < count && start < size; i++) {
+            long boundary = Math.max(start,
+                    offset + (size - offset) / count * i);
+            long newline = -1;
+            while (newline < 0 && boundary < size) {
+                probe.clear();
+                int read = channel.read(probe, boundary);
+                if (read < 0) {
+                    break;
+                }
+                int index = LogLineReader.indexOf(probe.array(), '\n', 0,
+                        read);
+                newline = index < 0 ? -1 : boundary + index;
+                boundary += read;
+            }
+            if (newline < 0) {
+                break;
+            }
+            chunks.add(new Chunk(start, newline + 1));
+            start = newline + 1;
+        }
+        chunks.add(new Chunk(start, size));
+        return chunks;
+    }
+
+    private void tokenize(Chunk chunk) {
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.READ)) {
+            LogLineReader reader = new LogLineReader(channel);
+            TaskNames names = new TaskNames();
+            reader.read(chunk.start, chunk.end, 0,
+                    (buf, start, end, position, next, lineNum) -> {
+                Line line = new Line(position, next, lineNum);
+                if (LogLineReader.isBlank(buf, start, end)) {
+                    chunk.failures.add(line);
+                    return;
+                }
+                line.record = LogParser.tokenize(buf, start, end, names);
+                if (line.record == null) {
+                    line.malformedText = new String(buf, start, end - start,
+                            StandardCharsets.UTF_8);
+                    chunk.failures.add(line);
+                    return;
+                }
+                Segment segment = chunk.segments.get(
+                        chunk.segments.size() - 1);
+                LogCommand command = line.record.getCommand();
+                if (command == LogCommand.RENAME
+                        || command == LogCommand.DELETE) {
+                    segment.tombstone = line;
+                    chunk.segments.add(new Segment());
+                    return;
+                }
+                segment.byTask.computeIfAbsent(line.record.getName(),
+                        name -> new ArrayList<>()).add(line);
+            });
+            chunk.lineCount = reader.getNextLineNumber();
+            chunk.terminated = reader.isTerminated();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private TaskResult replayTask(String name, List<Line> lines) {
+        Map<String, Task> local = new HashMap<>();
+        Task existing = taskMap.get(name);
+        if (existing != null) {
+            local.put(name, existing);
+        }
+        TaskResult result = new TaskResult(name);
+        Line[] current = new Line[1];
+        TaskReplayer replayer = new TaskReplayer(local,
+                ErrorReporter.withVerdict((lineNum, message) ->
+                        current[0].message = message, reporter.verdict()));
+        for (Line line : lines) {
+            current[0] = line;
+            if (!replayer.apply(line.record, line.lineNumber)) {
+                result.failures.add(line);
+            }
+        }
+        result.task = local.get(name);
+        return result;
+    }
+
+    private static class Chunk {
+        final long start;
+        final long end;
+        final List<Segment> segments = new ArrayList<>(
+                List.of(new Segment()));
+        final List<Line> failures = new ArrayList<>();
+        int lineCount;
+        boolean terminated;
+
+        Chunk(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    // Records up to and including a rename or delete
+    private static class Segment {
+        final Map<String, List<Line>> byTask = new HashMap<>();
+        Line tombstone;
+    }
+
+    private static class Line {
+        final long position;
+        final long next;
+        int lineNumber;
+        LogRecord record;
+        String message;
+        String malformedText;
+
+        Line(long position, long next, int lineNumber) {
+            this.position = position;
+            this.next = next;
+            this.lineNumber = lineNumber;
+        }
+    }
+
+    private static class TaskResult {
+        final String name;
+        final List<Line> failures = new ArrayList<>();
+        Task task;
+
+        TaskResult(String name) {
+            this.name = name;
+        }
+    }
+}
+
+class TaskReplayer {
+    static final String INVALID_SIZE = "INVALID";
+
+    private final Map<String, Task> taskMap;
+    private final ErrorReporter errorReporter;
+    private final TaskIndex index;
+    public TaskReplayer(Map<String, Task> taskMap,
+                        ErrorReporter errorReporter) {
+        this(taskMap, errorReporter, null);
+    }
+
+    // Keeps index in step with the records applied, when not null
+    public TaskReplayer(Map<String, Task> taskMap,
+                        ErrorReporter errorReporter, TaskIndex index) {
+        this.taskMap = taskMap;
+        this.errorReporter = errorReporter;
+        this.index = index;
+    }
+
+    public Map<String, Task> getTaskMap() {
+        return taskMap;
+    }
+
+    // Returns false when the record breaks the task's history
+    public boolean apply(LogRecord record, int lineNum) {
+        String name = record.getName();
+        LogCommand command = record.getCommand();
+        long parsedTime = record.getEpochSecond();
+
+        // Case: tombstones move or drop the whole task
+        if (command == LogCommand.RENAME) {
+            return rename(name, record.getDescription(), lineNum);
+        } else if (command == LogCommand.DELETE) {
+            return delete(name, lineNum);
+        }
+
+        // Case: Start a new task
+        Task task = taskMap.get(name);
+        if (command == LogCommand.START && task == null) {
+            task = new Task(parsedTime, name);
+            taskMap.put(name, task);
+            if (index != null) {
+                index.add(task);
+            }
+            return true;
+        }
+
+        // Case: commands but never started
+        if (task == null) {
+            printError(lineNum, name, " never started");
+            return false;
+        }
+
+        // Case valid commands, handle logic errors
+        return handleCommands(task, lineNum, command, parsedTime,
+                record.getDescription(), record.getSize());
+    }
+
+    public boolean rename(String oldName, String newName, int lineNum) {
+        Task task = taskMap.get(oldName);
+        if (task == null) {
+            printError(lineNum, oldName, " never started");
+            return false;
+        } else if (taskMap.containsKey(newName)) {
+            printError(lineNum, newName, " already exists");
+            return false;
+        }
+        taskMap.remove(oldName);
+        task.setName(newName);
+        taskMap.put(newName, task);
+        return true;
+    }
+
+    public boolean delete(String name, int lineNum) {
+        Task task = taskMap.remove(name);
+        if (task == null) {
+            printError(lineNum, name, " never started");
+            return false;
+        }
+        if (index != null) {
+            index.remove(task);
+        }
+        return true;
+    }
+
+    private boolean handleCommands(Task task, int lineNum,
+                                   LogCommand command, long parsedTime,
+                                   String desc, String size) {
+        switch (command) {
+            case START:
+                if (!task.lastEntryStopped()) {
+                    printError(lineNum, task.getName(), " never stopped");
+                    return false;
+                }
+                task.upsertTimeEntry(parsedTime, command.keyword());
+                break;
+            case STOP:
+                if (task.lastEntryStopped()) {
+                    printError(lineNum, task.getName(),
+                            " no matching start");
+                    return false;
+                } else if (task.isNegativeDuration(parsedTime)) {
+                    printError(lineNum, task.getName(),
+                            " negative duration");
+                    return false;
+                }
+                task.upsertTimeEntry(parsedTime, command.keyword());
+                break;
+            case DESCRIBE:
+                if (index != null) {
+                    index.remove(task);
+                }
+                task.setDescription(desc);
+                if (size != null) {
+                    task.setSize(size);
+                }
+                if (index != null) {
+                    index.add(task);
+                }
+                break;
+            case SIZE:
+                if (index != null) {
+                    index.remove(task);
+                }
+                task.setSize(size);
+                if (index != null) {
+                    index.add(task);
+                }
+                break;
+            default:
+                return false;
+        }
+        return true;
+    }
+
+    // Returns the canonical size, null for "null" or INVALID_SIZE
+    static String parseSize(byte[] buf, int start, int end) {
+        if (LogLineReader.equalsIgnoreCase(buf, start, end, "null")) {
+            return null;
+        }
+        for (String size : Task.SIZES) {
+            if (LogLineReader.equalsIgnoreCase(buf, start, end, size)) {
+                return size;
+            }
+        }
+        return INVALID_SIZE;
+    }
+
+    private void printError(int lineNum, String name, String condition){
+        errorReporter.report(lineNum, "Log Parsing Error: line " +
+                lineNum + " " + name + " " + condition + ", " +
+                errorReporter.verdict());
+    }
+}
+
+// Secondary indexes over a task map: tasks by size, and by the words of
+// their descriptions. Built on the first query, then kept up to date by
+// the TaskReplayer applying new records, so queries cost in proportion to
+// the tasks they return rather than to the whole map. Synchronized, as the
+// per-task commands of a concurrent daemon update it from several threads.
+class TaskIndex {
+    private final Map<String, Task> taskMap;
+    private Map<String, Set<Task>> bySize;
+    private Map<String, Set<Task>> byToken;
+
+    public TaskIndex(Map<String, Task> taskMap) {
+        this.taskMap = taskMap;
+    }
+
+    public synchronized void add(Task task) {
+        if (bySize == null) {
+            return;
+        }
+        if (task.getSize() != null) {
+            bySize.computeIfAbsent(task.getSize(), size -> new HashSet<>())
+                    .add(task);
+        }
+        for (String token : tokens(task.getDescription())) {
+            byToken.computeIfAbsent(token, t -> new HashSet<>()).add(task);
+        }
+    }
+
+    public synchronized void remove(Task task) {
+        if (bySize == null) {
+            return;
+        }
+        if (task.getSize() != null) {
+            removeFrom(bySize, task.getSize(), task);
+        }
+        for (String token : tokens(task.getDescription())) {
+            removeFrom(byToken, token, task);
+        }
+    }
+
+    public synchronized Collection<Task> withSize(String size) {
+        build();
+        return bySize.getOrDefault(size.toUpperCase(Locale.ROOT), Set.of());
+    }
+
+    // Tasks whose description has every word of terms
+    public synchronized Collection<Task> search(String terms) {
+        build();
+        List<Set<Task>> postings = new ArrayList<>();
+        for (String token : tokens(terms)) {
+            postings.add(byToken.getOrDefault(token, Set.of()));
+        }
+        if (postings.isEmpty()) {
+            return List.of();
+        }
+        // Case: walk the rarest word, probing the others
+        postings.sort(Comparator.comparingInt(Set::size));
+        List<Task> matches = new ArrayList<>();
+        for (Task task : postings.get(0)) {
+            boolean all = true;
+            for (int i = 1; i < postings.size() && all; i++) {
+                all = postings.get(i).contains(task);
+            }
+            if (all) {
+                matches.add(task);
+            }
+        }
+        return matches;
+    }
+
+    // Lowercased runs of letters and digits, without repeats
+    static Set<String> tokens(String text) {
+        if (text == null) {
+            return Set.of();
+        }
+        Set<String> tokens = new LinkedHashSet<>();
+        String[] words = text.toLowerCase(Locale.ROOT)
+                .split("[^\\p{L}\\p{N}]+");
+        for (String token : words) {
+            if (!token.isEmpty()) {
+                tokens.add(token);
+            }
+        }
+        return tokens;
+    }
+
+    private void build() {
+        if (bySize != null) {
+            return;
+        }
+        bySize = new HashMap<>();
+        byToken = new HashMap<>();
+        for (Task task : taskMap.values()) {
+            add(task);
+        }
+    }
+
+    private static void removeFrom(Map<String, Set<Task>> index, String key,
+                                   Task task) {
+        Set<Task> tasks = index.get(key);
+        if (tasks != null && tasks.remove(task) && tasks.isEmpty()) {
+            index.remove(key);
+        }
+    }
+}
+
+enum LogCommand {
+    START("start"),
+    STOP("stop"),
+    DESCRIBE("describe"),
+    SIZE("size"),
+    RENAME("rename"),
+    DELETE("delete");
+
+    private static final LogCommand[] VALUES = values();
+    private final String keyword;
+
+    LogCommand(String keyword) {
+        this.keyword = keyword;
+    }
+
+    public String keyword() {
+        return keyword;
+    }
+
+    public static LogCommand parse(byte[] buf, int start, int end) {
+        for (LogCommand command : VALUES) {
+            if (LogLineReader.equalsIgnoreCase(buf, start, end,
+                    command.keyword)) {
+                return command;
+            }
+        }
+        return null;
+    }
+}
+
+class LogLineReader {
+    interface LineHandler {
+        // end excludes the line terminator, next is the file position of
+        // the following line
+        void onLine(byte[] buf, int start, int end, long position,
+                    long next, int lineNumber) throws IOException;
+    }
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final FileChannel channel;
+    private long endPosition;
+    private int nextLineNumber;
+    private boolean terminated;
+
+    public LogLineReader(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    public void read(long offset, int firstLineNumber, LineHandler handler)
+            throws IOException {
+        read(offset, Long.MAX_VALUE, firstLineNumber, handler);
+    }
+
+    // Reads the lines in [offset, limit), limit must be a line boundary or
+    // the end of the file
+    public void read(long offset, long limit, int firstLineNumber,
+                     LineHandler handler) throws IOException {
+        byte[] buf = new byte[BUFFER_SIZE];
+        int filled = 0;
+        int scanFrom = 0;
+        long bufferStart = offset;
+        int lineNumber = firstLineNumber;
+        terminated = true;
+        boolean eof = false;
+
+        while (!eof) {
+            if (filled == buf.length) {
+                buf = Arrays.copyOf(buf, buf.length * 2);
+            }
+            int length = (int) Math.min(buf.length - filled,
+                    limit - bufferStart - filled);
+            int read = length == 0 ? -1 : channel.read(ByteBuffer.wrap(buf,
+                    filled, length), bufferStart + filled);
+            if (read < 0) {
+                eof = true;
+            } else {
+                filled += read;
+            }
+
+            int lineStart = 0;
+            int newline;
+            while ((newline = indexOf(buf, '\n', scanFrom, filled)) >= 0) {
+                handler.onLine(buf, lineStart, trimCarriageReturn(buf,
+                        lineStart, newline), bufferStart + lineStart,
+                        bufferStart + newline + 1, lineNumber++);
+                lineStart = newline + 1;
+                scanFrom = lineStart;
+            }
+            // Case: last line without a terminator
+            if (eof && lineStart < filled) {
+                handler.onLine(buf, lineStart, trimCarriageReturn(buf,
+                        lineStart, filled), bufferStart + lineStart,
+                        bufferStart + filled, lineNumber++);
+                lineStart = filled;
+                terminated = false;
+            }
+
+            System.arraycopy(buf, lineStart, buf, 0, filled - lineStart);
+            filled -= lineStart;
+            bufferStart += lineStart;
+            scanFrom = filled;
+        }
+        endPosition = bufferStart;
+        nextLineNumber = lineNumber;
+        Metrics.add(Metrics.Counter.LINES_PARSED, lineNumber - firstLineNumber);
+        Metrics.add(Metrics.Counter.BYTES_READ, endPosition - offset);
+    }
+
+    public long getEndPosition() {
+        return endPosition;
+    }
+
+    public int getNextLineNumber() {
+        return nextLineNumber;
+    }
+
+    public boolean isTerminated() {
+        return terminated;
+    }
+
+    private static int trimCarriageReturn(byte[] buf, int start, int end) {
+        return end > start && buf[end - 1] == '\r' ? end - 1 : end;
+    }
+
+    static int indexOf(byte[] buf, char c, int start, int end) {
+        for (int i = Math.max(start, 0); i < end; i++) {
+            if (buf[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static int lastIndexOf(byte[] buf, char c, int start, int end) {
+        for (int i = end - 1; i >= start; i--) {
+            if (buf[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static boolean isBlank(byte[] buf, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (buf[i] != ' ' && buf[i] != '\t') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean equalsIgnoreCase(byte[] buf, int start, int end,
+                                    String ascii) {
+        if (end - start != ascii.length()) {
+            return false;
+        }
+        for (int i = 0; i < ascii.length(); i++) {
+            if (Character.toLowerCase((char) buf[start + i])
+                    != Character.toLowerCase(ascii.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
+
+class Timestamps {
+    private static final int[] DAYS_IN_MONTH =
+            {31, 28, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31};
+
+    private Timestamps() {}
+
+    // Parses an ISO-8601 instant truncated to seconds, Long.MIN_VALUE when
+    // the text is not a valid instant
+    public static long parseEpochSecond(byte[] buf, int start, int end) {
+        long fast = parseUtc(buf, start, end);
+        if (fast != Long.MIN_VALUE) {
+            return fast;
+        }
+        try {
+            return Instant.parse(new String(buf, start, end - start,
+                    StandardCharsets.UTF_8)).getEpochSecond();
+        } catch (Exception e) {
+            return Long.MIN_VALUE;
+        }
+    }
+
+    // Fast path for the yyyy-MM-ddTHH:mm:ss[.fraction]Z form written by
+    // Instant.toString()
+    private static long parseUtc(byte[] buf, int start, int end) {
+        if (end - start < 20 || buf[end - 1] != 'Z'
+                || buf[start + 4] != '-' || buf[start + 7] != '-'
+                || buf[start + 10] != 'T' || buf[start + 13] != ':'
+                || buf[start + 16] != ':') {
+            return Long.MIN_VALUE;
+        }
+        int year = digits(buf, start, 4);
+        int month = digits(buf, start + 5, 2);
+        int day = digits(buf, start + 8, 2);
+        int hour = digits(buf, start + 11, 2);
+        int minute = digits(buf, start + 14, 2);
+        int second = digits(buf, start + 17, 2);
+        if (year < 0 || month < 1 || month > 12 || day < 1
+                || day > daysInMonth(year, month) || hour < 0 || hour > 23
+                || minute < 0 || minute > 59 || second < 0
+                || second > 59) {
+            return Long.MIN_VALUE;
+        }
+
+        int fractionStart = start + 19;
+        if (fractionStart != end - 1) {
+            if (buf[fractionStart] != '.' || end - 1 - fractionStart < 2
+                    || end - 1 - fractionStart > 10
+                    || digits(buf, fractionStart + 1,
+                    end - 2 - fractionStart) < 0) {
+                return Long.MIN_VALUE;
+            }
+        }
+        return epochDay(year, month, day) * 86400L + hour * 3600L
+                + minute * 60L + second;
+    }
+
+    private static int digits(byte[] buf, int start, int count) {
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            int digit = buf[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private static int daysInMonth(int year, int month) {
+        boolean leap = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+        return month == 2 && leap ? 29 : DAYS_IN_MONTH[month - 1];
+    }
+
+    // Days since 1970-01-01 in the proleptic Gregorian calendar
+    static long epochDay(int year, int month, int day) {
+        long y = month <= 2 ? year - 1 : year;
+        long era = Math.floorDiv(y, 400);
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5
+                + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100
+                + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+}
+
+// Binary log layout: a 4 byte magic followed by records that start with a
+// one byte code, command in the low nibble and size in the high nibble.
+//   define   code, id:int, name:utf
+//   start    code, epochSecond:long, id:int
+//   stop     code, epochSecond:long, id:int
+//   size     code, epochSecond:long, id:int
+//   describe code, epochSecond:long, id:int, hasDescription:byte,
+//            [description:utf]
+//   rename   code, epochSecond:long, id:int, newName:utf
+//   delete   code, epochSecond:long, id:int
+class BinaryLogFile {
+    static final String EXTENSION = ".tmb";
+    private static final int MAGIC = 0x544d4231;
+    private static final int DEFINE = 0;
+    private static final int START = 1;
+    private static final int STOP = 2;
+    private static final int DESCRIBE = 3;
+    private static final int SIZE = 4;
+    private static final int RENAME = 5;
+    private static final int DELETE = 6;
+    private static final int HEADER = 13;
+    private static final int BATCH_RECORDS = 1 << 14;
+
+    interface RecordHandler {
+        // Exactly one of record, renamedTo or deleted describes the change.
+        // Returns whether the replay accepted it; the dictionary only
+        // follows renames and deletes that were accepted.
+        boolean onRecord(LogRecord record, String renamedTo,
+                         boolean deleted, long position, long next,
+                         int recordNumber) throws IOException;
+    }
+
+    private final Path path;
+    private final Map<String, Integer> ids;
+    private final List<String> names;
+    private boolean loaded;
+    private long endPosition;
+    private Durability durability = Durability.NONE;
+    // Records held back while a batch runs, null otherwise
+    private List<RecordEncoder> batch;
+
+    public BinaryLogFile(Path path) {
+        this.path = path;
+        this.ids = new HashMap<>();
+        this.names = new ArrayList<>();
+    }
+
+    public static boolean isBinary(String logFilePath) {
+        return logFilePath.endsWith(EXTENSION);
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    // Position after the last complete record, a torn tail lies beyond it
+    public long getEndPosition() {
+        return endPosition;
+    }
+
+    public void createIfNotExist() throws IOException {
+        if (!Files.exists(path) || Files.size(path) == 0) {
+            ByteBuffer header = ByteBuffer.allocate(4).putInt(MAGIC);
+            header.flip();
+            try (FileChannel channel = FileChannel.open(path,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                channel.write(header, 0);
+            }
+        }
+    }
+
+    public void read(RecordHandler handler) throws IOException {
+        ids.clear();
+        names.clear();
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(path),
+                        1 << 16))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a binary task log: " + path);
+            }
+            long position = 4;
+            int recordNumber = 1;
+            endPosition = position;
+            while (true) {
+                int code = in.read();
+                if (code < 0) {
+                    break;
+                }
+                int command = code & 0x0f;
+                long next;
+                if (command == DEFINE) {
+                    int id = in.readInt();
+                    String name = in.readUTF();
+                    define(id, name);
+                    next = position + 5 + utfLength(name);
+                } else {
+                    long time = in.readLong();
+                    int id = in.readInt();
+                    String name = id >= 0 && id < names.size() ?
+                            names.get(id) : null;
+                    next = position + HEADER;
+                    if (command == RENAME) {
+                        String newName = in.readUTF();
+                        next += utfLength(newName);
+                        boolean accepted = handler.onRecord(new LogRecord(
+                                time, name, null, null, null), newName, false,
+                                position, next, recordNumber);
+                        if (name != null && accepted) {
+                            ids.remove(name);
+                            ids.put(newName, id);
+                            names.set(id, newName);
+                        }
+                    } else if (command == DELETE) {
+                        boolean accepted = handler.onRecord(new LogRecord(
+                                time, name, null, null, null), null, true,
+                                position, next, recordNumber);
+                        if (name != null && accepted) {
+                            ids.remove(name);
+                            names.set(id, null);
+                        }
+                    } else {
+                        String description = null;
+                        if (command == DESCRIBE && in.readByte() != 0) {
+                            description = in.readUTF();
+                            next += utfLength(description);
+                        }
+                        next += command == DESCRIBE ? 1 : 0;
+                        handler.onRecord(new LogRecord(time, name,
+                                commandOf(command), description,
+                                sizeOf(code >>> 4)), null, false, position,
+                                next, recordNumber);
+                    }
+                    recordNumber++;
+                }
+                position = next;
+                endPosition = position;
+            }
+        } catch (EOFException e) {
+            // Case: torn record at the end of the log, endPosition excludes it
+        }
+        loaded = true;
+    }
+
+    // Forces the dictionary to be read again before the next append
+    public void invalidate() {
+        loaded = false;
+    }
+
+    public void ensureLoaded() throws IOException {
+        if (!loaded) {
+            read(verdicts());
+        }
+    }
+
+    // Judges renames and deletes the way TaskReplayer does, from which
+    // names are started tasks, for reads that do not replay the log
+    private static RecordHandler verdicts() {
+        Set<String> live = new HashSet<>();
+        return (record, renamedTo, deleted, position, next, number) -> {
+            String name = record.getName();
+            if (name == null) {
+                return false;
+            } else if (renamedTo != null) {
+                if (!live.contains(name) || live.contains(renamedTo)) {
+                    return false;
+                }
+                live.remove(name);
+                live.add(renamedTo);
+            } else if (deleted) {
+                return live.remove(name);
+            } else if (record.getCommand() == LogCommand.START) {
+                live.add(name);
+            }
+            return true;
+        };
+    }
+
+    public void append(long epochSecond, String name, String command,
+                       String description, String size) throws IOException {
+        appendRecord(out -> {
+            int id = idFor(TaskNames.fold(name), out);
+            int code = codeOf(command);
+            if (size != null && !size.equalsIgnoreCase("null")) {
+                code |= (Task.SIZES.indexOf(size.toUpperCase(Locale.ROOT))
+                        + 1) << 4;
+            }
+            out.writeByte(code);
+            out.writeLong(epochSecond);
+            out.writeInt(id);
+            if ((code & 0x0f) == DESCRIBE) {
+                out.writeByte(description == null ? 0 : 1);
+                if (description != null) {
+                    out.writeUTF(description);
+                }
+            }
+        });
+    }
+
+    public void appendRename(long epochSecond, String oldName,
+                             String newName) throws IOException {
+        appendRecord(out -> encodeRename(out, epochSecond,
+                TaskNames.fold(oldName), TaskNames.fold(newName)));
+    }
+
+    public void appendDelete(long epochSecond, String name)
+            throws IOException {
+        appendRecord(out -> encodeDelete(out, epochSecond,
+                TaskNames.fold(name)));
+    }
+
+    private void encodeRename(DataOutputStream out, long epochSecond,
+                              String oldName, String newName)
+            throws IOException {
+        Integer id = ids.remove(oldName);
+        if (id == null) {
+            return;
+        }
+        out.writeByte(RENAME);
+        out.writeLong(epochSecond);
+        out.writeInt(id);
+        out.writeUTF(newName);
+        ids.put(newName, id);
+        names.set(id, newName);
+    }
+
+    private void encodeDelete(DataOutputStream out, long epochSecond,
+                              String name) throws IOException {
+        Integer id = ids.remove(name);
+        if (id == null) {
+            return;
+        }
+        out.writeByte(DELETE);
+        out.writeLong(epochSecond);
+        out.writeInt(id);
+        names.set(id, null);
+    }
+
+    public void setDurability(Durability durability) {
+        this.durability = durability;
+    }
+
+    private interface RecordEncoder {
+        void encode(DataOutputStream out) throws IOException;
+    }
+
+    // Holds records back until endBatch, then encodes them under one lock
+    // and writes them together
+    public void beginBatch() {
+        batch = new ArrayList<>();
+    }
+
+    public void endBatch() throws IOException {
+        try {
+            flushBatch();
+        } finally {
+            batch = null;
+        }
+    }
+
+    private void flushBatch() throws IOException {
+        if (batch == null || batch.isEmpty()) {
+            return;
+        }
+        List<RecordEncoder> encoders = new ArrayList<>(batch);
+        batch.clear();
+        encode(out -> {
+            for (RecordEncoder encoder : encoders) {
+                encoder.encode(out);
+            }
+        });
+    }
+
+    private void appendRecord(RecordEncoder encoder) throws IOException {
+        if (batch == null) {
+            encode(encoder);
+        } else {
+            batch.add(encoder);
+            if (batch.size() >= BATCH_RECORDS) {
+                flushBatch();
+            }
+        }
+    }
+
+    // Encodes under the log lock, after catching up with records other
+    // writers appended, so dictionary ids stay unique
+    private void encode(RecordEncoder encoder) throws IOException {
+        LogLock.of(path).withLock(() -> {
+            if (!loaded || Files.size(path) != endPosition) {
+                loaded = false;
+                ensureLoaded();
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try {
+                encoder.encode(new DataOutputStream(bytes));
+                if (bytes.size() > 0) {
+                    write(bytes.toByteArray());
+                    endPosition += bytes.size();
+                }
+            } catch (IOException e) {
+                loaded = false;
+                throw e;
+            }
+            return null;
+        });
+    }
+
+    // Converts a CSV log into a new binary log at target
+    public static void fromCsv(Path csv, Path target) throws IOException {
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        Files.deleteIfExists(temp);
+        BinaryLogFile binary = new BinaryLogFile(temp);
+        binary.createIfNotExist();
+        binary.loaded = true;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (FileChannel output = FileChannel.open(temp,
+                StandardOpenOption.APPEND)) {
+            DataOutputStream out = new DataOutputStream(bytes);
+            LogParser.readImport(csv, (record, buf, start, end) -> {
+                binary.encode(out, record);
+                if (bytes.size() >= 1 << 16) {
+                    output.write(ByteBuffer.wrap(bytes.toByteArray()));
+                    bytes.reset();
+                }
+            });
+            output.write(ByteBuffer.wrap(bytes.toByteArray()));
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Writes the log as CSV, renames resolved to the final task names and
+    // records of deleted tasks dropped
+    public void toCsv(Path target) throws IOException {
+        read(verdicts());
+        List<String> finalNames = new ArrayList<>(names);
+
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp)) {
+            RecordHandler verdicts = verdicts();
+            read((record, renamedTo, deleted, position, next, number) -> {
+                boolean accepted = verdicts.onRecord(record, renamedTo,
+                        deleted, position, next, number);
+                if (record.getName() == null) {
+                    return accepted;
+                }
+                Integer id = ids.get(record.getName());
+                if (renamedTo != null || deleted || id == null) {
+                    return accepted;
+                }
+                String name = finalNames.get(id);
+                if (name == null) {
+                    return accepted;
+                }
+                writer.write(Instant.ofEpochSecond(record.getEpochSecond())
+                        + "," + name + "," + record.getCommand().keyword()
+                        + "," + record.getDescription() + ","
+                        + record.getSize());
+                writer.newLine();
+                return accepted;
+            });
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void encode(DataOutputStream out, LogRecord record)
+            throws IOException {
+        if (record.getCommand() == LogCommand.RENAME) {
+            encodeRename(out, record.getEpochSecond(), record.getName(),
+                    record.getDescription());
+            return;
+        } else if (record.getCommand() == LogCommand.DELETE) {
+            encodeDelete(out, record.getEpochSecond(), record.getName());
+            return;
+        }
+        int id = idFor(record.getName(), out);
+        int code = codeOf(record.getCommand().keyword());
+        if (record.getSize() != null) {
+            code |= (Task.SIZES.indexOf(record.getSize()) + 1) << 4;
+        }
+        out.writeByte(code);
+        out.writeLong(record.getEpochSecond());
+        out.writeInt(id);
+        if (record.getCommand() == LogCommand.DESCRIBE) {
+            out.writeByte(record.getDescription() == null ? 0 : 1);
+            if (record.getDescription() != null) {
+                out.writeUTF(record.getDescription());
+            }
+        }
+    }
+
+    private int idFor(String name, DataOutputStream out) throws IOException {
+        Integer id = ids.get(name);
+        if (id == null) {
+            id = names.size();
+            out.writeByte(DEFINE);
+            out.writeInt(id);
+            out.writeUTF(name);
+            define(id, name);
+        }
+        return id;
+    }
+
+    private void define(int id, String name) {
+        while (names.size() <= id) {
+            names.add(null);
+        }
+        names.set(id, name);
+        ids.put(name, id);
+    }
+
+    private void write(byte[] bytes) throws IOException {
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            durability.force(channel);
+            Metrics.add(Metrics.Counter.BYTES_WRITTEN, bytes.length);
+        }
+    }
+
+    private static int utfLength(String value) {
+        int length = 2;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            length += c >= 0x0001 && c <= 0x007f ? 1 : c > 0x07ff ? 3 : 2;
+        }
+        return length;
+    }
+
+    private static int codeOf(String command) {
+        switch (command.toLowerCase(Locale.ROOT)) {
             case "start":
-                if (args.length < 2) {
-                    throw new MissingArgumentException("start <task name>");
+                return START;
+            case "stop":
+                return STOP;
+            case "describe":
+                return DESCRIBE;
+            case "size":
+                return SIZE;
+            default:
+                throw new IllegalArgumentException("Unknown command: "
+                        + command);
+        }
+    }
+
+    private static LogCommand commandOf(int code) throws IOException {
+        switch (code) {
+            case START:
+                return LogCommand.START;
+            case STOP:
+                return LogCommand.STOP;
+            case DESCRIBE:
+                return LogCommand.DESCRIBE;
+            case SIZE:
+                return LogCommand.SIZE;
+            default:
+                throw new IOException("Unknown record code: " + code);
+        }
+    }
+
+    private static String sizeOf(int code) {
+        return code == 0 || code > Task.SIZES.size() ? null :
+                Task.SIZES.get(code - 1);
+    }
+}
+
+class BinaryLogger implements TaskLogger {
+    private final BinaryLogFile logFile;
+    public BinaryLogger(BinaryLogFile logFile) {
+        this.logFile = logFile;
+        try {
+            logFile.createIfNotExist();
+        } catch (IOException e) {
+            System.err.println("Error creating log file: "
+                    + e.getMessage());
+        }
+    }
+
+    public void logAction(Instant time, String taskName, String command,
+                          String description, String size) {
+        try {
+            logFile.append(time.getEpochSecond(), taskName,
+                    command, description, size);
+        } catch (IOException e) {
+            System.err.println("Error writing to log file: " + e.getMessage());
+        }
+    }
+
+    public void renameTasks(String oldName, String newName) {
+        try {
+            logFile.appendRename(Instant.now().getEpochSecond(), oldName,
+                    newName);
+        } catch (IOException e) {
+            System.err.println("Error writing to log file: " + e.getMessage());
+        }
+    }
+
+    public void deleteTasks(String taskName) {
+        try {
+            logFile.appendDelete(Instant.now().getEpochSecond(), taskName);
+        } catch (IOException e) {
+            System.err.println("Error writing to log file: " + e.getMessage());
+        }
+    }
+
+    public void beginBatch() {
+        logFile.beginBatch();
+    }
+
+    public void endBatch() {
+        try {
+            logFile.endBatch();
+        } catch (IOException e) {
+            System.err.println("Error writing to log file: " + e.getMessage());
+        }
+    }
+
+    public void exportLog(String csvPath) {
+        try {
+            logFile.toCsv(Paths.get(csvPath));
+        } catch (IOException e) {
+            System.err.println("Error exporting log file: " + e.getMessage());
+        }
+    }
+
+    public void importLog(String csvPath) {
+        try {
+            LogLock.of(logFile.getPath()).withLock(() -> {
+                BinaryLogFile.fromCsv(Paths.get(csvPath), logFile.getPath());
+                return null;
+            });
+        } catch (IOException e) {
+            System.err.println("Error importing log file: " + e.getMessage());
+        }
+    }
+
+    // Round trips through CSV, which keeps only live tasks under their
+    // final names
+    public void compact() {
+        Path path = logFile.getPath();
+        try {
+            LogLock.of(path).withLock(() -> {
+                Path csv = path.resolveSibling(path.getFileName()
+                        + ".compact.csv");
+                try {
+                    logFile.toCsv(csv);
+                    BinaryLogFile.fromCsv(csv, path);
+                } finally {
+                    Files.deleteIfExists(csv);
+                }
+                logFile.invalidate();
+                return null;
+            });
+        } catch (IOException e) {
+            System.err.println("Error compacting log file: "
+                    + e.getMessage());
+        }
+    }
+}
+
+class BinaryLogParser implements TaskLogParser {
+    private final Map<String, Task> taskMap;
+    private final BinaryLogFile logFile;
+    private final ValidationMode mode;
+    public BinaryLogParser(BinaryLogFile logFile, ValidationMode mode) {
+        this.taskMap = new HashMap<>();
+        this.logFile = logFile;
+        this.mode = mode;
+    }
+
+    public Map<String, Task> parseLogFile() {
+        TaskReplayer replayer = new TaskReplayer(taskMap,
+                ErrorReporter.of(mode));
+        String removing = mode == ValidationMode.REPAIR ? "removing" :
+                "not removing";
+        List<long[]> removedRanges = new ArrayList<>();
+        int[] records = {0};
+        try {
+            if (!Files.exists(logFile.getPath())) {
+                return taskMap;
+            }
+            logFile.read((record, renamedTo, deleted, position, next,
+                          recordNumber) -> {
+                records[0]++;
+                boolean applied;
+                if (record.getName() == null) {
+                    System.err.println("Malformed at record " + recordNumber
+                            + ", unknown task id, " + removing + " record");
+                    applied = false;
+                } else if (renamedTo != null) {
+                    applied = replayer.rename(record.getName(), renamedTo,
+                            recordNumber);
+                } else if (deleted) {
+                    applied = replayer.delete(record.getName(),
+                            recordNumber);
+                } else {
+                    applied = replayer.apply(record, recordNumber);
                 }
-                taskExecutor.startTask(args[1]);
+                if (!applied) {
+                    removedRanges.add(new long[]{position, next});
+                }
+                return applied;
+            });
+
+            Metrics.add(Metrics.Counter.LINES_PARSED, records[0]);
+            Metrics.add(Metrics.Counter.BYTES_READ, logFile.getEndPosition());
+            // Case: torn final record
+            long size = Files.size(logFile.getPath());
+            if (logFile.getEndPosition() < size) {
+                System.err.println("Malformed final record, " + removing
+                        + " " + (size - logFile.getEndPosition()) + " bytes");
+                removedRanges.add(new long[]{logFile.getEndPosition(), size});
+            }
+            Metrics.add(Metrics.Counter.MALFORMED_LINES,
+                    removedRanges.size());
+            if (!removedRanges.isEmpty() && mode == ValidationMode.REPAIR) {
+                long expectedSize = size;
+                Metrics.Timer timer = Metrics.time(Metrics.Phase.REPAIR);
+                try {
+                    LogLock.of(logFile.getPath()).withLock(() -> {
+                        // Case: another writer changed the log since it
+                        // was read
+                        if (Files.size(logFile.getPath()) == expectedSize) {
+                            LogFiles.atomicRewrite(logFile.getPath(),
+                                    removedRanges);
+                            Metrics.add(Metrics.Counter.LINES_REMOVED,
+                                    removedRanges.size());
+                        }
+                        return null;
+                    });
+                } finally {
+                    timer.close();
+                }
+            } else {
+                LogParser.reportKept(removedRanges.size());
+            }
+        } catch (IOException e) {
+            System.err.println("Error reading the log file: "
+                    + e.getMessage());
+        }
+        return taskMap;
+    }
+}
+
+// A sorted key-value store kept in a directory. Writes go to a write-ahead
+// log and an in-memory table, which is flushed to an immutable sorted
+// table once the log is large; a table ends with a dense index of entry
+// offsets, so a lookup is a binary search per table. MANIFEST names the
+// current write-ahead log and the tables, newest first, and is replaced
+// atomically, so a crash leaves either the old or the new set. Callers
+// hold the LogLock of the directory around every call.
+class LsmStore {
+    private static final int MAGIC = 0x544d4c31;
+    private static final long FLUSH_BYTES = 4 << 20;
+    private static final int MAX_TABLES = 4;
+    // Stands for a deleted key in the memtable and the tables
+    private static final byte[] TOMBSTONE = new byte[0];
+
+    private final Path dir;
+    private final NavigableMap<byte[], byte[]> memtable =
+            new TreeMap<>(Arrays::compareUnsigned);
+    private final List<SsTable> tables = new ArrayList<>();
+    // Entries staged since the last commit, and frames not yet written
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream frames = new ByteArrayOutputStream();
+    private String manifest;
+    private String walName;
+    private long generation;
+    private long firstGeneration;
+    private long walEnd;
+    private Durability durability = Durability.NONE;
+
+    public LsmStore(Path dir) {
+        this.dir = dir;
+    }
+
+    public Path getDir() {
+        return dir;
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    // A new store numbers its files after generation, so readers of a
+    // store it replaces never mistake its manifest for one they have read
+    public void startAfter(long generation) {
+        this.firstGeneration = generation;
+    }
+
+    public void setDurability(Durability durability) {
+        this.durability = durability;
+    }
+
+    // Picks up what other processes wrote since the last call
+    public void refresh() throws IOException {
+        Files.createDirectories(dir);
+        Path manifestPath = dir.resolve("MANIFEST");
+        String current = Files.exists(manifestPath) ?
+                Files.readString(manifestPath) : firstGeneration + "\nwal-"
+                + firstGeneration + ".log\n";
+        Path wal = dir.resolve(current.split("\n")[1]);
+        // Case: a flush, compaction or import replaced the tables
+        if (!current.equals(manifest)
+                || (Files.exists(wal) ? Files.size(wal) : 0) < walEnd) {
+            load(current);
+        }
+        readWal();
+    }
+
+    // Drops what is in memory, so the next refresh reads it all again
+    public void invalidate() {
+        manifest = null;
+        pending.reset();
+        frames.reset();
+    }
+
+    private void load(String current) throws IOException {
+        String[] lines = current.split("\n");
+        tables.clear();
+        memtable.clear();
+        generation = Long.parseLong(lines[0]);
+        walName = lines[1];
+        walEnd = 0;
+        for (int i = 2; i < lines.length; i++) {
+            tables.add(SsTable.open(dir.resolve(lines[i])));
+        }
+        manifest = current;
+    }
+
+    // Applies the complete frames past walEnd. A frame torn by a crash
+    // fails its checksum and is cut off before the next write.
+    private void readWal() throws IOException {
+        Path wal = dir.resolve(walName);
+        if (!Files.exists(wal) || Files.size(wal) == walEnd) {
+            return;
+        }
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(wal,
+                StandardOpenOption.READ)) {
+            buffer = ByteBuffer.allocate((int) (channel.size() - walEnd));
+            while (buffer.hasRemaining()
+                    && channel.read(buffer, walEnd + buffer.position()) > 0) {
+            }
+            buffer.flip();
+        }
+        Metrics.add(Metrics.Counter.BYTES_READ, buffer.remaining());
+        CRC32 crc = new CRC32();
+        while (buffer.remaining() >= 8) {
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                break;
+            }
+            crc.reset();
+            crc.update(buffer.array(), buffer.position(), length);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            int end = buffer.position() + length;
+            while (buffer.position() < end) {
+                byte[] key = new byte[buffer.getShort() & 0xffff];
+                int valueLength = buffer.getInt();
+                buffer.get(key);
+                byte[] value = TOMBSTONE;
+                if (valueLength >= 0) {
+                    value = new byte[valueLength];
+                    buffer.get(value);
+                }
+                memtable.put(key, value);
+            }
+            walEnd += 8 + length;
+        }
+    }
+
+    // The value stored under key, null when there is none
+    public byte[] get(byte[] key) {
+        byte[] value = memtable.get(key);
+        for (int i = 0; value == null && i < tables.size(); i++) {
+            value = tables.get(i).get(key);
+        }
+        return value == TOMBSTONE ? null : value;
+    }
+
+    // Every live key starting with prefix, in key order
+    public NavigableMap<byte[], byte[]> scan(byte[] prefix) {
+        NavigableMap<byte[], byte[]> result =
+                new TreeMap<>(Arrays::compareUnsigned);
+        for (int i = tables.size() - 1; i >= 0; i--) {
+            tables.get(i).scan(prefix, result::put);
+        }
+        for (Map.Entry<byte[], byte[]> entry
+                : memtable.tailMap(prefix, true).entrySet()) {
+            if (!startsWith(entry.getKey(), prefix)) {
+                break;
+            }
+            result.put(entry.getKey(), entry.getValue());
+        }
+        result.values().removeIf(value -> value == TOMBSTONE);
+        return result;
+    }
+
+    // Stages key, or its deletion when value is null, until commit
+    public void put(byte[] key, byte[] value) {
+        DataOutputStream out = new DataOutputStream(pending);
+        try {
+            out.writeShort(key.length);
+            out.writeInt(value == null ? -1 : value.length);
+            out.write(key);
+            if (value != null) {
+                out.write(value);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        memtable.put(key, value == null ? TOMBSTONE : value);
+    }
+
+    // Closes the entries staged so far into one frame, which a crash
+    // keeps or drops whole
+    public void commit() {
+        if (pending.size() == 0) {
+            return;
+        }
+        CRC32 crc = new CRC32();
+        byte[] payload = pending.toByteArray();
+        crc.update(payload);
+        frames.writeBytes(ByteBuffer.allocate(8).putInt(payload.length)
+                .putInt((int) crc.getValue()).array());
+        frames.writeBytes(payload);
+        pending.reset();
+    }
+
+    // Appends the committed frames to the write-ahead log with one write,
+    // flushing the memtable to a table once the log is large
+    public void write() throws IOException {
+        if (frames.size() == 0) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(frames.toByteArray());
+        frames.reset();
+        try (FileChannel channel = FileChannel.open(dir.resolve(walName),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            // Case: a torn frame left by a crash
+            if (channel.size() > walEnd) {
+                channel.truncate(walEnd);
+            }
+            long position = walEnd;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            durability.force(channel);
+        }
+        Metrics.add(Metrics.Counter.BYTES_WRITTEN, buffer.capacity());
+        walEnd += buffer.capacity();
+        if (walEnd >= FLUSH_BYTES) {
+            flush();
+        }
+    }
+
+    private void flush() throws IOException {
+        long next = generation + 1;
+        String table = "sst-" + next + ".sst";
+        SsTable.write(dir.resolve(table), memtable.entrySet().iterator());
+        List<String> names = new ArrayList<>();
+        names.add(table);
+        for (SsTable old : tables) {
+            names.add(old.name);
+        }
+        String oldWal = walName;
+        writeManifest(next, names);
+        Files.deleteIfExists(dir.resolve(oldWal));
+        if (tables.size() > MAX_TABLES) {
+            compact((key, value) -> true);
+        }
+    }
+
+    // Merges the memtable and every table into a single table, dropping
+    // deleted keys and the entries keep rejects
+    public void compact(BiPredicate<byte[], byte[]> keep) throws IOException {
+        long next = generation + 1;
+        String table = "sst-" + next + ".sst";
+        List<Iterator<Map.Entry<byte[], byte[]>>> sources = new ArrayList<>();
+        sources.add(memtable.entrySet().iterator());
+        List<String> oldFiles = new ArrayList<>();
+        oldFiles.add(walName);
+        for (SsTable old : tables) {
+            sources.add(old.iterator());
+            oldFiles.add(old.name);
+        }
+        int count = SsTable.write(dir.resolve(table),
+                new MergeIterator(sources, keep));
+        if (count == 0) {
+            Files.delete(dir.resolve(table));
+        }
+        writeManifest(next, count == 0 ? List.of() : List.of(table));
+        for (String old : oldFiles) {
+            Files.deleteIfExists(dir.resolve(old));
+        }
+    }
+
+    private void writeManifest(long next, List<String> tableNames)
+            throws IOException {
+        StringBuilder content = new StringBuilder();
+        content.append(next).append("\nwal-").append(next).append(".log\n");
+        for (String name : tableNames) {
+            content.append(name).append('\n');
+        }
+        Path temp = dir.resolve("MANIFEST.tmp");
+        try (FileOutputStream out = new FileOutputStream(temp.toFile())) {
+            out.write(content.toString().getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        }
+        Files.move(temp, dir.resolve("MANIFEST"),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        load(content.toString());
+    }
+
+    static boolean startsWith(byte[] key, byte[] prefix) {
+        return key.length >= prefix.length && Arrays.equals(key, 0,
+                prefix.length, prefix, 0, prefix.length);
+    }
+
+    // An immutable table: a magic number, the entries in key order as
+    // key length (u16), value length (-1 for a tombstone), key and value,
+    // then the offset of every entry, the index offset, the entry count
+    // and the magic number again. Tables are mapped, so they are limited
+    // to 2 GB each.
+    static class SsTable {
+        private final String name;
+        private final ByteBuffer data;
+        private final int count;
+        private final int indexStart;
+
+        private SsTable(String name, ByteBuffer data, int count,
+                        int indexStart) {
+            this.name = name;
+            this.data = data;
+            this.count = count;
+            this.indexStart = indexStart;
+        }
+
+        static SsTable open(Path path) throws IOException {
+            try (FileChannel channel = FileChannel.open(path,
+                    StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size < 16 || size > Integer.MAX_VALUE) {
+                    throw new IOException("Not a task table: " + path);
+                }
+                ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY,
+                        0, size);
+                int end = (int) size;
+                if (data.getInt(0) != MAGIC
+                        || data.getInt(end - 4) != MAGIC) {
+                    throw new IOException("Not a task table: " + path);
+                }
+                return new SsTable(path.getFileName().toString(), data,
+                        data.getInt(end - 8), data.getInt(end - 12));
+            }
+        }
+
+        // Writes the entries, which must be in key order, through a
+        // temporary file; tables are always forced since the write-ahead
+        // log is deleted once they are in the manifest
+        static int write(Path path, Iterator<Map.Entry<byte[], byte[]>> entries)
+                throws IOException {
+            Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+            int[] offsets = new int[1024];
+            int count = 0;
+            long position = 4;
+            try (FileOutputStream file = new FileOutputStream(temp.toFile());
+                 DataOutputStream out = new DataOutputStream(
+                         new BufferedOutputStream(file, 1 << 16))) {
+                out.writeInt(MAGIC);
+                while (entries.hasNext()) {
+                    Map.Entry<byte[], byte[]> entry = entries.next();
+                    byte[] value = entry.getValue();
+                    if (count == offsets.length) {
+                        offsets = Arrays.copyOf(offsets, count * 2);
+                    }
+                    offsets[count++] = (int) position;
+                    out.writeShort(entry.getKey().length);
+                    out.writeInt(value == TOMBSTONE ? -1 : value.length);
+                    out.write(entry.getKey());
+                    out.write(value);
+                    position += 6 + entry.getKey().length + value.length;
+                    if (position + 4L * count + 12 > Integer.MAX_VALUE) {
+                        throw new IOException("Task table too large: "
+                                + path);
+                    }
+                }
+                for (int i = 0; i < count; i++) {
+                    out.writeInt(offsets[i]);
+                }
+                out.writeInt((int) position);
+                out.writeInt(count);
+                out.writeInt(MAGIC);
+                out.flush();
+                file.getFD().sync();
+            }
+            Metrics.add(Metrics.Counter.BYTES_WRITTEN,
+                    position + 4L * count + 12);
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            return count;
+        }
+
+        byte[] get(byte[] key) {
+            int i = lowerBound(key);
+            return i < count && compareAt(i, key) == 0 ? value(i) : null;
+        }
+
+        void scan(byte[] prefix, BiConsumer<byte[], byte[]> consumer) {
+            for (int i = lowerBound(prefix); i < count; i++) {
+                byte[] key = key(i);
+                if (!startsWith(key, prefix)) {
+                    break;
+                }
+                consumer.accept(key, value(i));
+            }
+        }
+
+        Iterator<Map.Entry<byte[], byte[]>> iterator() {
+            return new Iterator<>() {
+                private int next;
+
+                public boolean hasNext() {
+                    return next < count;
+                }
+
+                public Map.Entry<byte[], byte[]> next() {
+                    int i = next++;
+                    return Map.entry(key(i), value(i));
+                }
+            };
+        }
+
+        // The first entry whose key is not below key
+        private int lowerBound(byte[] key) {
+            int low = 0;
+            int high = count;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (compareAt(mid, key) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        private int compareAt(int i, byte[] key) {
+            int offset = data.getInt(indexStart + 4 * i);
+            int length = data.getShort(offset) & 0xffff;
+            int start = offset + 6;
+            for (int j = 0; j < Math.min(length, key.length); j++) {
+                int diff = (data.get(start + j) & 0xff) - (key[j] & 0xff);
+                if (diff != 0) {
+                    return diff;
+                }
+            }
+            return length - key.length;
+        }
+
+        private byte[] key(int i) {
+            int offset = data.getInt(indexStart + 4 * i);
+            byte[] key = new byte[data.getShort(offset) & 0xffff];
+            data.get(offset + 6, key);
+            return key;
+        }
+
+        private byte[] value(int i) {
+            int offset = data.getInt(indexStart + 4 * i);
+            int keyLength = data.getShort(offset) & 0xffff;
+            int length = data.getInt(offset + 2);
+            if (length < 0) {
+                return TOMBSTONE;
+            }
+            byte[] value = new byte[length];
+            data.get(offset + 6 + keyLength, value);
+            return value;
+        }
+    }
+
+    // Merges sources in key order, the first source holding a key winning;
+    // tombstones and entries keep rejects are skipped
+    private static class MergeIterator
+            implements Iterator<Map.Entry<byte[], byte[]>> {
+        private static class Cursor {
+            final Iterator<Map.Entry<byte[], byte[]>> source;
+            final int rank;
+            Map.Entry<byte[], byte[]> entry;
+
+            Cursor(Iterator<Map.Entry<byte[], byte[]>> source, int rank) {
+                this.source = source;
+                this.rank = rank;
+            }
+
+            boolean advance() {
+                entry = source.hasNext() ? source.next() : null;
+                return entry != null;
+            }
+        }
+
+        private final PriorityQueue<Cursor> queue = new PriorityQueue<>(
+                (a, b) -> {
+                    int order = Arrays.compareUnsigned(a.entry.getKey(),
+                            b.entry.getKey());
+                    return order != 0 ? order : Integer.compare(a.rank,
+                            b.rank);
+                });
+        private final BiPredicate<byte[], byte[]> keep;
+        private Map.Entry<byte[], byte[]> next;
+
+        MergeIterator(List<Iterator<Map.Entry<byte[], byte[]>>> sources,
+                      BiPredicate<byte[], byte[]> keep) {
+            this.keep = keep;
+            for (int i = 0; i < sources.size(); i++) {
+                Cursor cursor = new Cursor(sources.get(i), i);
+                if (cursor.advance()) {
+                    queue.add(cursor);
+                }
+            }
+            next = find();
+        }
+
+        private Map.Entry<byte[], byte[]> find() {
+            while (!queue.isEmpty()) {
+                Cursor first = queue.poll();
+                Map.Entry<byte[], byte[]> entry = first.entry;
+                if (first.advance()) {
+                    queue.add(first);
+                }
+                // Case: older copies of the same key
+                while (!queue.isEmpty() && Arrays.equals(
+                        queue.peek().entry.getKey(), entry.getKey())) {
+                    Cursor older = queue.poll();
+                    if (older.advance()) {
+                        queue.add(older);
+                    }
+                }
+                if (entry.getValue() != TOMBSTONE
+                        && keep.test(entry.getKey(), entry.getValue())) {
+                    return entry;
+                }
+            }
+            return null;
+        }
+
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        public Map.Entry<byte[], byte[]> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<byte[], byte[]> entry = next;
+            next = find();
+            return entry;
+        }
+    }
+}
+
+// Tasks kept in an LsmStore. Each task name maps to a task id and the
+// task's size, and each record is stored under its task id and a sequence
+// number, so one task's records are adjacent and in order. start, stop,
+// rename and delete then read and write a handful of keys instead of
+// replaying or rewriting the log; compact drops the records that deleted
+// tasks left behind.
+class IndexedLogFile {
+    static final String EXTENSION = ".lsm";
+    private static final byte NAME = 'n';
+    private static final byte RECORD = 'r';
+    private static final byte[] NEXT = {'m'};
+    private static final LogCommand[] COMMANDS = LogCommand.values();
+    private static final int BATCH_RECORDS = 1 << 14;
+
+    private final LsmStore store;
+    private int nextId;
+    private long nextSeq;
+    // Records held back while a batch runs, null otherwise
+    private List<LogRecord> batch;
+
+    public IndexedLogFile(Path dir) {
+        this.store = new LsmStore(dir);
+    }
+
+    public static boolean isIndexed(String logFilePath) {
+        return logFilePath.endsWith(EXTENSION);
+    }
+
+    public Path getPath() {
+        return store.getDir();
+    }
+
+    public void setDurability(Durability durability) {
+        store.setDurability(durability);
+    }
+
+    public void append(long epochSecond, String taskName, String command,
+                       String description, String size) throws IOException {
+        LogCommand parsed = LogCommand.valueOf(command.toUpperCase(
+                Locale.ROOT));
+        LogRecord record = new LogRecord(epochSecond,
+                TaskNames.fold(taskName), parsed, parsed == LogCommand.RENAME ?
+                TaskNames.fold(description) : description,
+                size == null ? null : size.toUpperCase(Locale.ROOT));
+        if (batch != null) {
+            batch.add(record);
+            if (batch.size() >= BATCH_RECORDS) {
+                writeBatch();
+            }
+            return;
+        }
+        locked(() -> {
+            apply(record);
+            store.commit();
+            store.write();
+            return null;
+        });
+    }
+
+    public void beginBatch() {
+        if (batch == null) {
+            batch = new ArrayList<>();
+        }
+    }
+
+    public void endBatch() throws IOException {
+        try {
+            writeBatch();
+        } finally {
+            batch = null;
+        }
+    }
+
+    // Applies the held back records under one lock, one frame each, and
+    // writes them together
+    private void writeBatch() throws IOException {
+        if (batch == null || batch.isEmpty()) {
+            return;
+        }
+        List<LogRecord> records = batch;
+        batch = new ArrayList<>();
+        locked(() -> {
+            for (LogRecord record : records) {
+                apply(record);
+                store.commit();
+            }
+            store.write();
+            return null;
+        });
+    }
+
+    // The task named name, built from its records alone; null when there
+    // is none
+    public Task lookup(String name) throws IOException {
+        if (!Files.exists(getPath())) {
+            return null;
+        }
+        return locked(() -> {
+            byte[] entry = store.get(nameKey(name));
+            return entry == null ? null : build(name,
+                    ByteBuffer.wrap(entry).getInt());
+        });
+    }
+
+    // Only the tasks whose name and size pass filter; the others are
+    // skipped without reading their records
+    public Map<String, Task> read(BiPredicate<String, String> filter)
+            throws IOException {
+        Map<String, Task> tasks = new HashMap<>();
+        if (!Files.exists(getPath())) {
+            return tasks;
+        }
+        return locked(() -> {
+            for (Map.Entry<byte[], byte[]> entry
+                    : store.scan(new byte[]{NAME}).entrySet()) {
+                String name = nameOf(entry.getKey());
+                ByteBuffer value = ByteBuffer.wrap(entry.getValue());
+                int id = value.getInt();
+                if (filter.test(name, getString(value))) {
+                    Task task = build(name, id);
+                    if (task != null) {
+                        tasks.put(name, task);
+                    }
+                }
+            }
+            return tasks;
+        });
+    }
+
+    // Writes the live tasks' records as CSV, in the order they were
+    // logged and under the tasks' current names
+    public void toCsv(Path target) throws IOException {
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        locked(() -> {
+            NavigableMap<Long, LogRecord> records = new TreeMap<>();
+            for (Map.Entry<byte[], byte[]> entry
+                    : store.scan(new byte[]{NAME}).entrySet()) {
+                String name = nameOf(entry.getKey());
+                int id = ByteBuffer.wrap(entry.getValue()).getInt();
+                store.scan(recordPrefix(id)).forEach((key, value) ->
+                        records.put(ByteBuffer.wrap(key).getLong(5),
+                                decode(name, value)));
+            }
+            try (BufferedWriter writer = Files.newBufferedWriter(temp)) {
+                for (LogRecord record : records.values()) {
+                    writer.write(Instant.ofEpochSecond(
+                            record.getEpochSecond()) + "," + record.getName()
+                            + "," + record.getCommand().keyword() + ","
+                            + record.getDescription() + ","
+                            + record.getSize());
+                    writer.newLine();
+                }
+            }
+            return null;
+        });
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Replaces the store with the tasks of a CSV log, replaying it once
+    // so only records that hold up are kept. The new store is built next
+    // to this one and compacted into a single table before it is moved in.
+    public void fromCsv(Path csv) throws IOException {
+        Path dir = getPath();
+        Path temp = sibling(dir, ".import");
+        Path old = sibling(dir, ".old");
+        LogLock.of(dir).withLock(() -> {
+            open();
+            deleteTree(temp);
+            IndexedLogFile imported = new IndexedLogFile(temp);
+            imported.store.startAfter(store.getGeneration());
+            imported.open();
+            int[] records = {0};
+            LogParser.readImport(csv, (record, buf, start, end) -> {
+                imported.apply(record);
+                imported.store.commit();
+                if (++records[0] % BATCH_RECORDS == 0) {
+                    imported.store.write();
+                }
+            });
+            imported.store.write();
+            imported.store.compact((key, value) -> true);
+            deleteTree(old);
+            if (Files.exists(dir)) {
+                Files.move(dir, old, StandardCopyOption.ATOMIC_MOVE);
+            }
+            Files.move(temp, dir, StandardCopyOption.ATOMIC_MOVE);
+            deleteTree(old);
+            store.invalidate();
+            return null;
+        });
+    }
+
+    // Rewrites the store as one table, without the records of tasks that
+    // were deleted
+    public void compact() throws IOException {
+        locked(() -> {
+            Set<Integer> live = new HashSet<>();
+            for (byte[] value : store.scan(new byte[]{NAME}).values()) {
+                live.add(ByteBuffer.wrap(value).getInt());
+            }
+            store.compact((key, value) -> key[0] != RECORD
+                    || live.contains(ByteBuffer.wrap(key).getInt(1)));
+            return null;
+        });
+    }
+
+    private <T> T locked(IOAction<T> action) throws IOException {
+        return LogLock.of(getPath()).withLock(() -> {
+            try {
+                open();
+                return action.run();
+            } catch (IOException | RuntimeException e) {
+                store.invalidate();
+                throw e;
+            }
+        });
+    }
+
+    private void open() throws IOException {
+        Path old = sibling(getPath(), ".old");
+        // Case: an import stopped between moving this store aside and
+        // moving the new one in
+        if (!Files.exists(getPath()) && Files.exists(old)) {
+            Files.move(old, getPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        store.refresh();
+        byte[] next = store.get(NEXT);
+        ByteBuffer buffer = next == null ? ByteBuffer.allocate(12) :
+                ByteBuffer.wrap(next);
+        nextId = buffer.getInt();
+        nextSeq = buffer.getLong();
+    }
+
+    // Stages the keys the record changes; the caller has checked it
+    // against the tasks
+    private void apply(LogRecord record) {
+        byte[] nameKey = nameKey(record.getName());
+        byte[] entry = store.get(nameKey);
+        LogCommand command = record.getCommand();
+        if (command == LogCommand.RENAME || command == LogCommand.DELETE) {
+            if (entry != null) {
+                if (command == LogCommand.RENAME) {
+                    store.put(nameKey(record.getDescription()), entry);
+                }
+                store.put(nameKey, null);
+            }
+            return;
+        }
+
+        int id;
+        String size = null;
+        if (entry != null) {
+            ByteBuffer value = ByteBuffer.wrap(entry);
+            id = value.getInt();
+            size = getString(value);
+        } else if (command == LogCommand.START) {
+            id = nextId++;
+        } else {
+            // Case: nothing to attach the record to
+            return;
+        }
+        if (entry == null || record.getSize() != null) {
+            String newSize = record.getSize() == null ? size :
+                    record.getSize();
+            ByteBuffer value = ByteBuffer.allocate(4 + stringLength(newSize));
+            value.putInt(id);
+            putString(value, newSize);
+            store.put(nameKey, value.array());
+        }
+        store.put(ByteBuffer.allocate(13).put(RECORD).putInt(id)
+                .putLong(nextSeq++).array(), encode(record));
+        store.put(NEXT, ByteBuffer.allocate(12).putInt(nextId)
+                .putLong(nextSeq).array());
+    }
+
+    private Task build(String name, int id) {
+        Map<String, Task> task = new HashMap<>(2);
+        TaskReplayer replayer = new TaskReplayer(task,
+                (lineNum, message) -> {});
+        Collection<byte[]> records = store.scan(recordPrefix(id)).values();
+        for (byte[] value : records) {
+            replayer.apply(decode(name, value), 0);
+        }
+        Metrics.add(Metrics.Counter.LINES_PARSED, records.size());
+        return task.get(name);
+    }
+
+    private static byte[] encode(LogRecord record) {
+        ByteBuffer value = ByteBuffer.allocate(9
+                + stringLength(record.getDescription())
+                + stringLength(record.getSize()));
+        value.putLong(record.getEpochSecond());
+        value.put((byte) record.getCommand().ordinal());
+        putString(value, record.getDescription());
+        putString(value, record.getSize());
+        return value.array();
+    }
+
+    private static LogRecord decode(String name, byte[] bytes) {
+        ByteBuffer value = ByteBuffer.wrap(bytes);
+        long time = value.getLong();
+        LogCommand command = COMMANDS[value.get()];
+        String description = getString(value);
+        return new LogRecord(time, name, command, description,
+                getString(value));
+    }
+
+    private static byte[] nameKey(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] key = new byte[bytes.length + 1];
+        key[0] = NAME;
+        System.arraycopy(bytes, 0, key, 1, bytes.length);
+        return key;
+    }
+
+    private static String nameOf(byte[] key) {
+        return new String(key, 1, key.length - 1, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] recordPrefix(int id) {
+        return ByteBuffer.allocate(5).put(RECORD).putInt(id).array();
+    }
+
+    // Strings are a length (-1 for null) followed by UTF-8 bytes
+    private static int stringLength(String value) {
+        return 4 + (value == null ? 0 :
+                value.getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    private static void putString(ByteBuffer buffer, String value) {
+        if (value == null) {
+            buffer.putInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        buffer.putInt(bytes.length).put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        String value = new String(buffer.array(), buffer.position(), length,
+                StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    private static Path sibling(Path dir, String suffix) {
+        return dir.resolveSibling(dir.getFileName() + suffix);
+    }
+
+    private static void deleteTree(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+}
+
+class IndexedLogger implements TaskLogger {
+    private final IndexedLogFile logFile;
+    public IndexedLogger(IndexedLogFile logFile) {
+        this.logFile = logFile;
+    }
+
+    public void logAction(Instant time, String taskName, String command,
+                          String description, String size) {
+        try {
+            logFile.append(time.getEpochSecond(), taskName, command,
+                    description, size);
+        } catch (IOException e) {
+            System.err.println("Error writing to log file: " + e.getMessage());
+        }
+    }
+
+    public void renameTasks(String oldName, String newName) {
+        logAction(Instant.now(), oldName, LogCommand.RENAME.keyword(),
+                newName, null);
+    }
+
+    public void deleteTasks(String taskName) {
+        logAction(Instant.now(), taskName, LogCommand.DELETE.keyword(),
+                null, null);
+    }
+
+    public void beginBatch() {
+        logFile.beginBatch();
+    }
+
+    public void endBatch() {
+        try {
+            logFile.endBatch();
+        } catch (IOException e) {
+            System.err.println("Error writing to log file: " + e.getMessage());
+        }
+    }
+
+    public void exportLog(String csvPath) {
+        try {
+            logFile.toCsv(Paths.get(csvPath));
+        } catch (IOException e) {
+            System.err.println("Error exporting log file: " + e.getMessage());
+        }
+    }
+
+    // Also the migration from a CSV log, e.g. --indexed import
+    // task-manager.log
+    public void importLog(String csvPath) {
+        try {
+            logFile.fromCsv(Paths.get(csvPath));
+        } catch (IOException e) {
+            System.err.println("Error importing log file: " + e.getMessage());
+        }
+    }
+
+    public void compact() {
+        try {
+            logFile.compact();
+        } catch (IOException e) {
+            System.err.println("Error compacting log file: "
+                    + e.getMessage());
+        }
+    }
+}
+
+// Records are checked as they are written, so there is nothing for the
+// validation mode to repair
+class IndexedLogParser implements TaskLogParser {
+    private final IndexedLogFile logFile;
+    public IndexedLogParser(IndexedLogFile logFile) {
+        this.logFile = logFile;
+    }
+
+    public Map<String, Task> parseLogFile() {
+        return parseMatching((name, size) -> true);
+    }
+
+    public Map<String, Task> parseMatching(
+            BiPredicate<String, String> filter) {
+        try {
+            return logFile.read(filter);
+        } catch (IOException e) {
+            System.err.println("Error reading the log file: "
+                    + e.getMessage());
+            return new HashMap<>();
+        }
+    }
+
+    public boolean hasIndex() {
+        return true;
+    }
+
+    public Task lookup(String name) {
+        try {
+            return logFile.lookup(name);
+        } catch (IOException e) {
+            System.err.println("Error reading the log file: "
+                    + e.getMessage());
+            return null;
+        }
+    }
+}
+
+// Locks over task names for a concurrent daemon: a command on one task
+// holds the shared side of a whole-map lock and its task's stripe, so
+// commands on unrelated tasks seldom wait for each other, while a command
+// over all tasks holds the exclusive side and runs alone. NONE locks
+// nothing, for a single caller.
+class TaskLocks {
+    static final TaskLocks NONE = new TaskLocks(0);
+
+    private final ReentrantReadWriteLock whole;
+    private final ReentrantLock[] stripes;
+
+    // stripes is rounded up to a power of two
+    public TaskLocks(int stripes) {
+        this.whole = new ReentrantReadWriteLock();
+        this.stripes = new ReentrantLock[stripes == 0 ? 0 :
+                Integer.highestOneBit(Math.max(1, stripes - 1)) << 1];
+        for (int i = 0; i < this.stripes.length; i++) {
+            this.stripes[i] = new ReentrantLock();
+        }
+    }
+
+    public boolean isStriped() {
+        return stripes.length > 0;
+    }
+
+    // Returns the stripe to hand to unlockTask, null when nothing is locked
+    public ReentrantLock lockTask(String taskName) {
+        if (!isStriped()) {
+            return null;
+        }
+        int hash = TaskNames.fold(taskName).hashCode();
+        ReentrantLock stripe = stripes[(hash ^ (hash >>> 16))
+                & (stripes.length - 1)];
+        whole.readLock().lock();
+        stripe.lock();
+        return stripe;
+    }
+
+    public void unlockTask(ReentrantLock stripe) {
+        if (stripe != null) {
+            stripe.unlock();
+            whole.readLock().unlock();
+        }
+    }
+
+    public void lockAll() {
+        if (isStriped()) {
+            whole.writeLock().lock();
+        }
+    }
+
+    public void unlockAll() {
+        if (isStriped()) {
+            whole.writeLock().unlock();
+        }
+    }
+}
+
+// Funnels a logger's writes through one writer thread, in the order the
+// callers queued them; each caller waits for its own write. Actions queued
+// while the writer is busy are written as one batch, so concurrent
+// commands share a write and a force in every log format. Whatever the
+// logger prints goes to the callers of the batch.
+class OrderedLogger implements TaskLogger {
+    private final TaskLogger logger;
+    private final BlockingQueue<Write> queue;
+    private final ReentrantLock writing;
+    private final Runnable written;
+    // Whether a caller's batch is open, only used by the writer thread
+    private boolean batching;
+
+    // written runs on the writer thread after every batch
+    public OrderedLogger(TaskLogger logger, Runnable written) {
+        this.logger = logger;
+        this.queue = new LinkedBlockingQueue<>();
+        this.writing = new ReentrantLock();
+        this.written = written;
+        Thread writer = new Thread(this::drain, "tm-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Runs check while no batch is being written
+    public boolean whileIdle(BooleanSupplier check) {
+        writing.lock();
+        try {
+            return check.getAsBoolean();
+        } finally {
+            writing.unlock();
+        }
+    }
+
+    public void logAction(Instant time, String taskName, String command,
+                          String description, String size) {
+        submit(true, () -> logger.logAction(time, taskName, command,
+                description, size));
+    }
+
+    public void renameTasks(String oldName, String newName) {
+        submit(false, () -> logger.renameTasks(oldName, newName));
+    }
+
+    public void deleteTasks(String taskName) {
+        submit(false, () -> logger.deleteTasks(taskName));
+    }
+
+    public void exportLog(String csvPath) {
+        submit(false, () -> logger.exportLog(csvPath));
+    }
+
+    public void importLog(String csvPath) {
+        submit(false, () -> logger.importLog(csvPath));
+    }
+
+    public void compact() {
+        submit(false, logger::compact);
+    }
+
+    public void beginBatch() {
+        submit(false, () -> {
+            logger.beginBatch();
+            batching = true;
+        });
+    }
+
+    public void endBatch() {
+        submit(false, () -> {
+            batching = false;
+            logger.endBatch();
+        });
+    }
+
+    private void submit(boolean appends, Runnable action) {
+        Write write = new Write(appends, action);
+        queue.add(write);
+        boolean interrupted = false;
+        while (true) {
+            try {
+                write.done.await();
                 break;
-            case "stop":
-                if (args.length < 2) {
-                    throw new MissingArgumentException("stop <task name>");
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        System.out.write(write.out, 0, write.out.length);
+        System.err.write(write.err, 0, write.err.length);
+        if (write.error != null) {
+            throw write.error;
+        }
+    }
+
+    private void drain() {
+        List<Write> writes = new ArrayList<>();
+        while (true) {
+            try {
+                writes.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(writes);
+            // Case: runs of appends share a batch, anything else runs alone
+            int from = 0;
+            while (from < writes.size()) {
+                int to = from + 1;
+                if (writes.get(from).appends) {
+                    while (to < writes.size() && writes.get(to).appends) {
+                        to++;
+                    }
                 }
-                taskExecutor.stopTask(args[1]);
-                break;
-            case "describe":
-                if (args.length < 3) {
-                    throw new MissingArgumentException("describe " +
-                            "<task name> <description> [{S|M|L|XL}]");
+                write(writes.subList(from, to));
+                from = to;
+            }
+            writes.clear();
+        }
+    }
+
+    private void write(List<Write> batch) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        writing.lock();
+        try {
+            ConsoleRouter.capture(new PrintStream(out, true,
+                    StandardCharsets.UTF_8), new PrintStream(err, true,
+                    StandardCharsets.UTF_8), () -> {
+                boolean grouped = batch.size() > 1 && !batching;
+                // Case: a shared commit counts towards every caller in it
+                List<Metrics.Scope> scopes = new ArrayList<>();
+                for (Write write : batch) {
+                    scopes.add(write.scope);
                 }
-                String size = null;
-                if (args[args.length - 1].toUpperCase()
-                        .matches("S|M|L|XL")) {
-                    size = args[args.length - 1];
+                if (grouped) {
+                    Metrics.withinAll(scopes, logger::beginBatch);
                 }
-                String description = String.join(" ",
-                        Arrays.copyOfRange(args, 2, size != null ?
-                                args.length - 1 : args.length));
+                try {
+                    for (Write write : batch) {
+                        try {
+                            Metrics.within(write.scope, write.action);
+                        } catch (RuntimeException e) {
+                            write.error = e;
+                        }
+                    }
+                } finally {
+                    if (grouped) {
+                        Metrics.withinAll(scopes, logger::endBatch);
+                    }
+                }
+            });
+            written.run();
+        } catch (RuntimeException e) {
+            for (Write write : batch) {
+                write.error = e;
+            }
+        } finally {
+            writing.unlock();
+            byte[] printed = out.toByteArray();
+            byte[] errors = err.toByteArray();
+            for (Write write : batch) {
+                write.out = printed;
+                write.err = errors;
+                write.done.countDown();
+            }
+        }
+    }
+
+    private static class Write {
+        final boolean appends;
+        final Runnable action;
+        // The caller's command, which the write is counted towards
+        final Metrics.Scope scope;
+        final CountDownLatch done;
+        byte[] out;
+        byte[] err;
+        RuntimeException error;
+
+        Write(boolean appends, Runnable action) {
+            this.appends = appends;
+            this.action = action;
+            this.scope = Metrics.scope();
+            this.done = new CountDownLatch(1);
+        }
+    }
+}
+
+class TaskDaemon {
+    private static final String STATS = "--stats";
+    // Task lock stripes of a concurrent daemon
+    private static final int STRIPES = 256;
+    // Connections waiting to be accepted, beyond which clients are refused
+    private static final int BACKLOG = 4096;
+
+    private final Path logPath;
+    private final Path socketPath;
+    private final TaskLogger logger;
+    private final Function<ValidationMode, TaskLogParser> parsers;
+    private TaskExecutor executor;
+    private TaskLocks locks;
+    private OrderedLogger orderedLogger;
+    private volatile LogState expectedState;
+    // The tasks came from a read-only replay, which leaves malformed lines
+    // in the log for the next modifying command to remove
+    private volatile boolean unrepaired;
+    private volatile boolean running;
+    private volatile ServerSocketChannel server;
+    private boolean concurrent;
+    private Path metricsFile;
+
+    public TaskDaemon(Path logPath, TaskLogger logger,
+                      Function<ValidationMode, TaskLogParser> parsers) {
+        this.logPath = logPath;
+        this.socketPath = socketPath(logPath.toString());
+        this.logger = logger;
+        this.parsers = parsers;
+    }
+
+    public static Path socketPath(String logFilePath) {
+        return Paths.get(logFilePath + ".sock");
+    }
+
+    // Request arguments asking for the stats of the command they run
+    public static String[] withStats(String[] args) {
+        if (args.length == 0) {
+            return args;
+        }
+        String[] request = new String[args.length + 1];
+        request[0] = STATS;
+        System.arraycopy(args, 0, request, 1, args.length);
+        return request;
+    }
+
+    // Prometheus text written after every request
+    public void setMetricsFile(Path metricsFile) {
+        this.metricsFile = metricsFile;
+    }
+
+    // Serves every connection on its own thread, see run
+    public void setConcurrent(boolean concurrent) {
+        this.concurrent = concurrent;
+    }
+
+    public void serve() throws IOException {
+        if (DaemonClient.isRunning(socketPath)) {
+            System.err.println("Daemon already running on " + socketPath);
+            return;
+        }
+        Files.deleteIfExists(socketPath);
+        ConsoleRouter.install();
+        TaskLogger target = logger;
+        locks = TaskLocks.NONE;
+        if (concurrent) {
+            orderedLogger = new OrderedLogger(logger,
+                    () -> expectedState = LogState.of(logPath));
+            target = orderedLogger;
+            locks = new TaskLocks(STRIPES);
+        }
+        executor = new TaskExecutor(target,
+                parsers.apply(ValidationMode.REPAIR), true, locks);
+        expectedState = LogState.of(logPath);
+        running = true;
+
+        ExecutorService requests = concurrent ? requestThreads() : null;
+        try (ServerSocketChannel server = ServerSocketChannel.open(
+                StandardProtocolFamily.UNIX)) {
+            this.server = server;
+            server.bind(UnixDomainSocketAddress.of(socketPath), BACKLOG);
+            Runtime.getRuntime().addShutdownHook(new Thread(
+                    this::removeSocket));
+            System.out.println("Serving " + logPath + " on " + socketPath
+                    + (concurrent ? ", concurrently" : ""));
+            while (running) {
+                SocketChannel client;
+                try {
+                    client = server.accept();
+                } catch (IOException e) {
+                    // Case: shutdown closed the socket to stop the accept
+                    if (running) {
+                        System.err.println("Daemon request failed: "
+                                + e.getMessage());
+                    }
+                    continue;
+                }
+                if (requests != null) {
+                    requests.execute(() -> serve(client));
+                } else {
+                    serve(client);
+                }
+            }
+        } finally {
+            if (requests != null) {
+                requests.shutdown();
+                try {
+                    requests.awaitTermination(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            removeSocket();
+        }
+    }
+
+    // Virtual threads when the runtime has them; the build targets Java
+    // 17, where a cached pool of daemon threads stands in
+    static ExecutorService requestThreads() {
+        try {
+            return (ExecutorService) Executors.class.getMethod(
+                    "newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "tm-request");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    private void serve(SocketChannel client) {
+        try (client) {
+            handle(client);
+        } catch (IOException e) {
+            System.err.println("Daemon request failed: " + e.getMessage());
+        }
+    }
+
+    private void handle(SocketChannel client) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Channels.newInputStream(client)));
+        String[] args = new String[in.readInt()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = in.readUTF();
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        ConsoleRouter.capture(new PrintStream(out, true, StandardCharsets.UTF_8),
+                new PrintStream(err, true, StandardCharsets.UTF_8),
+                () -> execute(args));
+
+        DataOutputStream reply = new DataOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(client)));
+        reply.writeInt(out.size());
+        out.writeTo(reply);
+        reply.writeInt(err.size());
+        err.writeTo(reply);
+        reply.flush();
+    }
+
+    private void execute(String[] request) {
+        boolean stats = request.length > 0 && request[0].equals(STATS);
+        String[] args = stats ? Arrays.copyOfRange(request, 1,
+                request.length) : request;
+        try (Metrics.CommandTimer timer = Metrics.command(args)) {
+            run(args);
+            if (stats) {
+                System.err.print(timer.stats(false));
+            }
+        }
+        if (metricsFile != null) {
+            Metrics.writeTo(metricsFile);
+        }
+    }
+
+    // A concurrent daemon runs a command on one task under its stripe,
+    // next to commands on other tasks, and writes through the ordered
+    // logger, which tracks the log state it leaves. Any other command runs
+    // alone, as every command does on a sequential daemon.
+    private void run(String[] args) {
+        if (args.length > 0 && args[0].equalsIgnoreCase("shutdown")) {
+            running = false;
+            closeServer();
+            System.out.println("Daemon stopped");
+            return;
+        }
+
+        ValidationMode mode = CommandParser.isReadOnly(args) ?
+                ValidationMode.REPORT : ValidationMode.REPAIR;
+        if (concurrent && CommandParser.isPerTask(args)) {
+            if (unrepaired || isStale()) {
+                locks.lockAll();
+                try {
+                    if (unrepaired || isStale()) {
+                        executor.reload(parsers.apply(mode));
+                        unrepaired = false;
+                        expectedState = LogState.of(logPath);
+                    }
+                } finally {
+                    locks.unlockAll();
+                }
+            }
+            runCommand(args);
+            return;
+        }
+
+        locks.lockAll();
+        try {
+            // Case: log changed behind the daemon's back, replay it again,
+            // and once more to repair it before the first modifying command
+            // after a read-only replay
+            if (isStale() || unrepaired && mode == ValidationMode.REPAIR) {
+                executor.reload(parsers.apply(mode));
+                unrepaired = mode == ValidationMode.REPORT;
+            }
+
+            runCommand(args);
+
+            // Case: imported logs are only known after a full replay
+            boolean imported = args.length > 0
+                    && args[0].equalsIgnoreCase("import");
+            expectedState = imported ? null : LogState.of(logPath);
+        } finally {
+            locks.unlockAll();
+        }
+    }
+
+    // A write in progress would look like a change behind the daemon's back
+    private boolean isStale() {
+        if (orderedLogger == null) {
+            return !LogState.of(logPath).equals(expectedState);
+        }
+        return orderedLogger.whileIdle(() ->
+                !LogState.of(logPath).equals(expectedState));
+    }
+
+    private void runCommand(String[] args) {
+        try {
+            new CommandParser(executor).parseThenExecute(args);
+        } catch (Exception e) {
+            System.err.println(e.getMessage());
+        }
+    }
+
+    private void closeServer() {
+        try {
+            if (concurrent && server != null) {
+                server.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error closing socket: " + e.getMessage());
+        }
+    }
+
+    private void removeSocket() {
+        try {
+            Files.deleteIfExists(socketPath);
+        } catch (IOException e) {
+            System.err.println("Error removing socket: " + e.getMessage());
+        }
+    }
+}
+
+class DaemonClient {
+    private DaemonClient() {}
+
+    public static boolean isRunning(Path socketPath) {
+        if (!Files.exists(socketPath)) {
+            return false;
+        }
+        try (SocketChannel channel = SocketChannel.open(
+                UnixDomainSocketAddress.of(socketPath))) {
+            return channel.isConnected();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Runs the command on the daemon, false when no daemon is listening
+    public static boolean forward(Path socketPath, String[] args) {
+        if (args.length == 0 || !Files.exists(socketPath)) {
+            return false;
+        }
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open(
+                    UnixDomainSocketAddress.of(socketPath));
+        } catch (IOException e) {
+            return false;
+        }
+
+        try (channel) {
+            byte[][] reply = exchange(channel, args);
+            System.out.write(reply[0]);
+            System.out.flush();
+            System.err.write(reply[1]);
+            System.err.flush();
+        } catch (IOException e) {
+            // Case: the daemon may have run the command, do not run it twice
+            System.err.println("Error talking to daemon: " + e.getMessage());
+        }
+        return true;
+    }
+
+    // Sends one request and returns what the daemon printed to its out
+    // and err streams for it
+    static byte[][] exchange(SocketChannel channel, String[] args)
+            throws IOException {
+        DataOutputStream request = new DataOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(channel)));
+        request.writeInt(args.length);
+        for (String arg : args) {
+            request.writeUTF(arg);
+        }
+        request.flush();
+
+        DataInputStream reply = new DataInputStream(new BufferedInputStream(
+                Channels.newInputStream(channel)));
+        byte[] out = new byte[reply.readInt()];
+        reply.readFully(out);
+        byte[] err = new byte[reply.readInt()];
+        reply.readFully(err);
+        return new byte[][] {out, err};
+    }
+}
 
-                taskExecutor.describe(args[1], description, size);
-                break;
+// Routes System.out and System.err to per-thread streams while a daemon
+// request runs
+class ConsoleRouter {
+    private static final ThreadLocal<PrintStream> OUT = new ThreadLocal<>();
+    private static final ThreadLocal<PrintStream> ERR = new ThreadLocal<>();
+    private static boolean installed;
 
-            case "size":
-                if (args.length < 3) {
-                    throw new MissingArgumentException("size <task name> " +
-                            "{S|M|L|XL}");
-                }
-                taskExecutor.size(args[1], args[2]);
-                break;
+    private ConsoleRouter() {}
 
-            case "rename":
-                if (args.length < 3) {
-                    throw new MissingArgumentException("rename " +
-                            "<old task name> <new task name>");
-                }
-                taskExecutor.rename(args[1], args[2]);
-                break;
+    public static synchronized void install() {
+        if (installed) {
+            return;
+        }
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+        System.setOut(new PrintStream(new RoutedStream(OUT, out), true,
+                StandardCharsets.UTF_8));
+        System.setErr(new PrintStream(new RoutedStream(ERR, err), true,
+                StandardCharsets.UTF_8));
+        installed = true;
+    }
 
-            case "delete":
-                if (args.length < 2) {
-                    throw new MissingArgumentException("delete <task name>");
-                }
-                taskExecutor.delete(args[1]);
-                break;
+    public static void capture(PrintStream out, PrintStream err,
+                               Runnable action) {
+        OUT.set(out);
+        ERR.set(err);
+        try {
+            action.run();
+        } finally {
+            OUT.remove();
+            ERR.remove();
+            System.out.flush();
+            System.err.flush();
+        }
+    }
 
-            case "summary":
-                taskExecutor.summary(args.length > 1 ? args[1] : null);
-                break;
+    private static class RoutedStream extends OutputStream {
+        private final ThreadLocal<PrintStream> target;
+        private final PrintStream fallback;
 
-            default:
-                throw new IllegalArgumentException("Unknown command: "
-                        + command);
+        RoutedStream(ThreadLocal<PrintStream> target, PrintStream fallback) {
+            this.target = target;
+            this.fallback = fallback;
+        }
+
+        private PrintStream current() {
+            PrintStream stream = target.get();
+            return stream == null ? fallback : stream;
+        }
+
+        @Override
+        public void write(int b) {
+            current().write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            current().write(b, off, len);
+        }
+
+        @Override
+        public void flush() {
+            current().flush();
         }
     }
 }
 
-class TaskExecutor {
-    private final Map<String, Task> taskMap;
-    private final TaskLogger logger;
-    public TaskExecutor(TaskLogger logger, TaskLogParser logParser) {
-        this.logger = logger;
-        this.taskMap = logParser.parseLogFile();
+class LogState {
+    private final long size;
+    private final long lastModified;
+    private final Object fileKey;
+
+    private LogState(long size, long lastModified, Object fileKey) {
+        this.size = size;
+        this.lastModified = lastModified;
+        this.fileKey = fileKey;
     }
 
-    private boolean isValidSize(String size) {
-        return size.toUpperCase().matches("S|M|L|XL");
+    public static LogState of(Path path) {
+        try {
+            // Case: an indexed log, which changes as the files in it do
+            if (Files.isDirectory(path)) {
+                return ofDirectory(path);
+            }
+            BasicFileAttributes attributes = Files.readAttributes(path,
+                    BasicFileAttributes.class);
+            return new LogState(attributes.size(),
+                    attributes.lastModifiedTime().toMillis(),
+                    attributes.fileKey());
+        } catch (IOException e) {
+            return new LogState(-1, -1, null);
+        }
     }
 
-    public void startTask(String taskName) throws IllegalCommandException {
-        Task task = taskMap.get(taskName);
-        if(task != null && !task.lastEntryStopped()){
-            throw new IllegalCommandException(taskName,
-                    "has not been stopped");
+    private static LogState ofDirectory(Path dir) throws IOException {
+        long size = 0;
+        long lastModified = 0;
+        List<String> names = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                BasicFileAttributes attributes = Files.readAttributes(file,
+                        BasicFileAttributes.class);
+                size += attributes.size();
+                lastModified = Math.max(lastModified,
+                        attributes.lastModifiedTime().toMillis());
+                names.add(file.getFileName().toString());
+            }
         }
-        logger.logAction(taskName,"start",null, null);
+        Collections.sort(names);
+        return new LogState(size, lastModified, names);
     }
 
-    public void stopTask(String taskName) throws IllegalCommandException {
-        Task task = taskMap.get(taskName);
-        if(task == null || task.lastEntryStopped()){
-            throw new IllegalCommandException(taskName,
-                    "has not been started");
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof LogState)) {
+            return false;
         }
-        logger.logAction(taskName, "stop", null, null);
+        LogState other = (LogState) o;
+        return size == other.size && lastModified == other.lastModified
+                && Objects.equals(fileKey, other.fileKey);
     }
 
-    public void describe(String taskName, String description, String size)
-            throws IllegalCommandException {
-        Task task = taskMap.get(taskName);
-        if(task == null){
-            throw new IllegalCommandException(taskName,
-                    "does not exist");
+    @Override
+    public int hashCode() {
+        return Objects.hash(size, lastModified, fileKey);
+    }
+}
+
+enum Durability {
+    // Leave flushing to the operating system
+    NONE,
+    // Force file contents to disk after each commit
+    DATA,
+    // Force contents and metadata to disk after each commit
+    FULL;
+
+    public static Durability parse(String value) {
+        try {
+            return valueOf(value.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown durability " + value
+                    + ", using none");
+            return NONE;
         }
-        logger.logAction(taskName,"describe", description, size);
     }
 
-    public void size(String taskName, String size)
-            throws IllegalCommandException {
-        Task task = taskMap.get(taskName);
-        if(task == null){
-            throw new IllegalCommandException(taskName,
-                    "does not exist");
-        } else if (!isValidSize(size)){
-            throw new IllegalCommandException(taskName,
-                    "invalid size");
+    public void force(FileChannel channel) throws IOException {
+        if (this != NONE) {
+            channel.force(this == FULL);
         }
-        logger.logAction(taskName,"size",null, size);
     }
+}
 
-    public void summary(String arg)
-            throws IllegalCommandException {
-        SummaryStrategy strategy;
-        if (arg == null) {
-            strategy = new SummaryForAll(new SummaryInfo(taskMap,
-                    task -> true));
-        } else if (isValidSize(arg)) {
-            strategy = new SummaryBySize(new SummaryInfo(taskMap,
-                    task -> task.getSize() != null &&
-                            task.getSize().equals(arg.toUpperCase()))
-                    , arg.toUpperCase());
-        } else {
-            Task task = taskMap.get(arg);
-            if(task == null){
-                throw new IllegalCommandException(arg,
-                        "does not exist");
+// Seals the active segment of a CSV log once it reaches maxBytes, or once
+// its first record is older than maxAgeSeconds. Zero disables a limit.
+class RolloverPolicy {
+    static final RolloverPolicy NEVER = new RolloverPolicy(0, 0);
+
+    private final long maxBytes;
+    private final long maxAgeSeconds;
+
+    public RolloverPolicy(long maxBytes, long maxAgeSeconds) {
+        this.maxBytes = maxBytes;
+        this.maxAgeSeconds = maxAgeSeconds;
+    }
+
+    // Sizes take a k, m or g suffix, ages a d or h suffix (days default)
+    public static RolloverPolicy parse(String size, String age) {
+        long maxBytes = 0;
+        long maxAgeSeconds = 0;
+        try {
+            if (size != null) {
+                maxBytes = scaled(size, "kmg", new long[]{1L << 10,
+                        1L << 20, 1L << 30}, 1);
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Unknown rollover size " + size
+                    + ", not rolling over by size");
+        }
+        try {
+            if (age != null) {
+                maxAgeSeconds = scaled(age, "dh", new long[]{86_400, 3_600},
+                        86_400);
             }
-            strategy = new SummaryByName(taskMap.get(arg));
+        } catch (NumberFormatException e) {
+            System.err.println("Unknown rollover age " + age
+                    + ", not rolling over by age");
         }
-        strategy.generateSummary();
+        return new RolloverPolicy(maxBytes, maxAgeSeconds);
     }
 
-    public void delete(String taskName)
-            throws IllegalCommandException {
-        Task task = taskMap.get(taskName);
-        if(task == null){
-            throw new IllegalCommandException(taskName,
-                    "does not exist");
+    private static long scaled(String value, String units, long[] scales,
+                               long defaultScale) {
+        String lower = value.trim().toLowerCase(Locale.ROOT);
+        int unit = lower.isEmpty() ? -1 :
+                units.indexOf(lower.charAt(lower.length() - 1));
+        long scale = unit < 0 ? defaultScale : scales[unit];
+        long amount = Long.parseLong(unit < 0 ? lower :
+                lower.substring(0, lower.length() - 1));
+        if (amount < 0) {
+            throw new NumberFormatException(value);
         }
-        logger.deleteTasks(taskName);
+        return Math.multiplyExact(amount, scale);
     }
 
-    public void rename(String oldName, String newName)
-            throws IllegalCommandException {
-        Task newTask = taskMap.get(newName);
-        Task oldTask = taskMap.get(oldName);
-        if(oldTask == null){
-            throw new IllegalCommandException(oldName,
-                    "does not exist");
-        } else if (newTask != null){
-            throw new IllegalCommandException(newName,
-                    "already exists");
+    public boolean isEnabled() {
+        return maxBytes > 0 || maxAgeSeconds > 0;
+    }
+
+    // firstSecond is the time of the segment's first record, or -1
+    public boolean isDue(long size, long firstSecond, long nowSecond) {
+        if (size == 0) {
+            return false;
         }
-        logger.renameTasks(oldName, newName);
+        return (maxBytes > 0 && size >= maxBytes) || (maxAgeSeconds > 0
+                && firstSecond >= 0
+                && nowSecond - firstSecond >= maxAgeSeconds);
     }
 }
 
-class Logger implements TaskLogger {
-    private final String logFilePath;
-    public Logger(String logFilePath) {
-        this.logFilePath = logFilePath;
-        createLogIfNotExist();
+interface IOAction<T> {
+    T run() throws IOException;
+}
+
+// Serializes writers of one log across threads and processes. The OS lock
+// is held on a separate <log>.lock file so it survives the log being
+// replaced by an atomic rewrite.
+class LogLock {
+    private static final Map<Path, LogLock> LOCKS = new ConcurrentHashMap<>();
+
+    private final Path lockPath;
+    private final ReentrantLock localLock;
+
+    private LogLock(Path logPath) {
+        this.lockPath = logPath.resolveSibling(logPath.getFileName()
+                + ".lock");
+        this.localLock = new ReentrantLock();
     }
 
-    private void createLogIfNotExist() {
-        File file = new File(this.logFilePath);
-        if (!file.exists()) {
-            try {
-                boolean created = file.createNewFile();
-                if (!created) {
-                    throw new IOException("File already exists.");
+    public static LogLock of(Path logPath) {
+        return LOCKS.computeIfAbsent(logPath.toAbsolutePath().normalize(),
+                LogLock::new);
+    }
+
+    public <T> T withLock(IOAction<T> action) throws IOException {
+        localLock.lock();
+        try {
+            if (localLock.getHoldCount() > 1) {
+                return action.run();
+            }
+            try (FileChannel channel = FileChannel.open(lockPath,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                FileLock lock = channel.lock();
+                try {
+                    return action.run();
+                } finally {
+                    lock.release();
+                }
+            }
+        } finally {
+            localLock.unlock();
+        }
+    }
+}
+
+// Appends entries to the log under its LogLock. Entries queued by
+// concurrent callers are committed together with one write and one force.
+class LogWriter {
+    private final Path path;
+    private final Durability durability;
+    private final boolean resident;
+    private final RolloverPolicy rollover;
+    private final Queue<PendingEntry> queue;
+    private final ReentrantLock commitLock;
+    private FileChannel channel;
+    private Object channelFileKey;
+    // Time of the active segment's first record, -1 when it is empty
+    private long segmentStart;
+
+    public LogWriter(Path path, Durability durability, boolean resident) {
+        this(path, durability, resident, RolloverPolicy.NEVER);
+    }
+
+    public LogWriter(Path path, Durability durability, boolean resident,
+                     RolloverPolicy rollover) {
+        this.path = path;
+        this.durability = durability;
+        this.resident = resident;
+        this.rollover = rollover;
+        this.queue = new ConcurrentLinkedQueue<>();
+        this.commitLock = new ReentrantLock();
+    }
+
+    public void append(byte[] entry) throws IOException {
+        PendingEntry pending = new PendingEntry(entry);
+        queue.add(pending);
+        commitLock.lock();
+        try {
+            // Case: an earlier committer already wrote this entry
+            if (!pending.done) {
+                commit();
+            }
+        } finally {
+            commitLock.unlock();
+        }
+        if (pending.error != null) {
+            throw pending.error;
+        }
+    }
+
+    private void commit() throws IOException {
+        List<PendingEntry> batch = new ArrayList<>();
+        int length = 0;
+        PendingEntry next;
+        while ((next = queue.poll()) != null) {
+            batch.add(next);
+            length += next.entry.length;
+        }
+        ByteBuffer bytes = ByteBuffer.allocate(length);
+        for (PendingEntry pending : batch) {
+            bytes.put(pending.entry);
+        }
+        bytes.flip();
+
+        IOException error = null;
+        boolean sealed = false;
+        try {
+            sealed = LogLock.of(path).withLock(() -> {
+                FileChannel target = openChannel();
+                long now = Instant.now().getEpochSecond();
+                boolean due = rollover.isDue(target.size(), segmentStart,
+                        now);
+                try {
+                    // Case: the active segment is full or too old
+                    if (due) {
+                        closeChannel();
+                        LogSegments.seal(path);
+                        target = openChannel();
+                    }
+                    if (segmentStart < 0) {
+                        segmentStart = now;
+                    }
+                    while (bytes.hasRemaining()) {
+                        target.write(bytes);
+                    }
+                    durability.force(target);
+                    Metrics.add(Metrics.Counter.BYTES_WRITTEN, bytes.limit());
+                } finally {
+                    if (!resident) {
+                        closeChannel();
+                    }
                 }
+                return due;
+            });
+        } catch (IOException e) {
+            closeChannel();
+            error = e;
+        }
+        for (PendingEntry pending : batch) {
+            pending.error = error;
+            pending.done = true;
+        }
+        if (sealed) {
+            LogSegments.foldInBackground(path);
+        }
+    }
+
+    // Reopens the channel when the log was replaced by a rewrite
+    private FileChannel openChannel() throws IOException {
+        Object fileKey = Files.exists(path) ? Files.readAttributes(path,
+                BasicFileAttributes.class).fileKey() : null;
+        if (channel == null || fileKey == null
+                || !fileKey.equals(channelFileKey)) {
+            closeChannel();
+            channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                    StandardOpenOption.APPEND);
+            channelFileKey = Files.readAttributes(path,
+                    BasicFileAttributes.class).fileKey();
+            segmentStart = rollover.isEnabled() ? firstRecordSecond() : -1;
+        }
+        return channel;
+    }
+
+    private long firstRecordSecond() throws IOException {
+        try (FileChannel reader = FileChannel.open(path,
+                StandardOpenOption.READ)) {
+            ByteBuffer head = ByteBuffer.allocate(64);
+            reader.read(head, 0);
+            int comma = LogLineReader.indexOf(head.array(), ',', 0,
+                    head.position());
+            long second = comma < 0 ? Long.MIN_VALUE :
+                    Timestamps.parseEpochSecond(head.array(), 0, comma);
+            // Case: empty or unreadable, age counts from the next append
+            return second == Long.MIN_VALUE ? -1 : second;
+        }
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
             } catch (IOException e) {
-                System.err.println("Error creating log file: "
+                System.err.println("Error closing log file: "
                         + e.getMessage());
             }
+            channel = null;
+        }
+    }
+
+    private static class PendingEntry {
+        final byte[] entry;
+        volatile boolean done;
+        volatile IOException error;
+
+        PendingEntry(byte[] entry) {
+            this.entry = entry;
+        }
+    }
+}
+
+class LogFiles {
+    private LogFiles() {}
+
+    // Replaces the log with its first keepBytes followed by lines, returns
+    // the new size
+    public static long atomicRewrite(Path path, long keepBytes,
+                                     List<String> lines) throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel source = FileChannel.open(path,
+                StandardOpenOption.READ);
+             FileChannel target = FileChannel.open(temp,
+                     StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            transfer(source, target, 0, keepBytes);
+            BufferedWriter writer = new BufferedWriter(
+                    Channels.newWriter(target, StandardCharsets.UTF_8));
+            for (String line : lines) {
+                writer.write(line);
+                writer.newLine();
+            }
+            writer.flush();
+            target.force(true);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        long size = Files.size(path);
+        Metrics.add(Metrics.Counter.BYTES_WRITTEN, size);
+        return size;
+    }
+
+    // Replaces the log with a copy that skips the given [start, end) byte
+    // ranges, returns the new size
+    public static long atomicRewrite(Path path, List<long[]> removedRanges)
+            throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel source = FileChannel.open(path,
+                StandardOpenOption.READ);
+             FileChannel target = FileChannel.open(temp,
+                     StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = 0;
+            for (long[] range : removedRanges) {
+                transfer(source, target, position, range[0]);
+                position = range[1];
+            }
+            transfer(source, target, position, source.size());
+            target.force(true);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        long size = Files.size(path);
+        Metrics.add(Metrics.Counter.BYTES_WRITTEN, size);
+        return size;
+    }
+
+    interface LineRewriter {
+        // Writes the replacement for the line to out, nothing to drop it
+        void rewrite(byte[] buf, int start, int end, int lineNumber,
+                     OutputStream out) throws IOException;
+    }
+
+    // Replaces the log with every line passed through rewriter, returns
+    // the new size
+    public static long atomicRewrite(Path path, LineRewriter rewriter)
+            throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel source = FileChannel.open(path,
+                StandardOpenOption.READ);
+             FileChannel target = FileChannel.open(temp,
+                     StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            OutputStream out = new BufferedOutputStream(
+                    Channels.newOutputStream(target), 1 << 16);
+            new LogLineReader(source).read(0, 1,
+                    (buf, start, end, position, next, lineNum) ->
+                            rewriter.rewrite(buf, start, end, lineNum, out));
+            out.flush();
+            target.force(true);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        long size = Files.size(path);
+        Metrics.add(Metrics.Counter.BYTES_WRITTEN, size);
+        return size;
+    }
+
+    // Appends the whole file at source to target
+    public static void copyInto(Path source, FileChannel target)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(source,
+                StandardOpenOption.READ)) {
+            transfer(channel, target, 0, channel.size());
+        }
+    }
+
+    private static void transfer(FileChannel source, FileChannel target,
+                                 long from, long to) throws IOException {
+        while (from < to) {
+            from += source.transferTo(from, to - from, target);
+        }
+    }
+
+    public static long terminateLastLine(Path path) throws IOException {
+        byte[] separator = System.lineSeparator()
+                .getBytes(StandardCharsets.UTF_8);
+        Files.write(path, separator, StandardOpenOption.APPEND);
+        Metrics.add(Metrics.Counter.BYTES_WRITTEN, separator.length);
+        return Files.size(path);
+    }
+}
+
+class LogSnapshot {
+    static final long REBUILD_BYTES = 1 << 20;
+    private static final int MAGIC = 0x544d5335;
+    // Bytes of the log mapped at a time while fingerprinting
+    private static final long CHUNK = 64L << 20;
+
+    private final Map<String, Task> taskMap;
+    private final long offset;
+    private final int lineCount;
+    private final long generation;
+
+    private LogSnapshot(Map<String, Task> taskMap, long offset,
+                        int lineCount, long generation) {
+        this.taskMap = taskMap;
+        this.offset = offset;
+        this.lineCount = lineCount;
+        this.generation = generation;
+    }
+
+    public Map<String, Task> getTaskMap() {
+        return taskMap;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public int getLineCount() {
+        return lineCount;
+    }
+
+    // Last sealed segment the state includes, see LogSegments
+    public long getGeneration() {
+        return generation;
+    }
+
+    static Path snapshotPath(Path logPath) {
+        return logPath.resolveSibling(logPath.getFileName() + ".snapshot");
+    }
+
+    public static void invalidate(Path logPath) {
+        try {
+            Files.deleteIfExists(snapshotPath(logPath));
+        } catch (IOException e) {
+            System.err.println("Error removing snapshot: " + e.getMessage());
+        }
+    }
+
+    public static LogSnapshot load(Path logPath) {
+        Path path = snapshotPath(logPath);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC) {
+                return null;
+            }
+            long offset = in.readLong();
+            int lineCount = in.readInt();
+            long generation = in.readLong();
+            long fingerprint = in.readLong();
+
+            // Case: log was truncated, rewritten or hand edited
+            if (Files.size(logPath) < offset
+                    || fingerprint(logPath, offset) != fingerprint) {
+                return null;
+            }
+
+            Map<String, Task> taskMap = readTasks(in);
+            Metrics.add(Metrics.Counter.BYTES_READ, Files.size(path));
+            return new LogSnapshot(taskMap, offset, lineCount, generation);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    public static void write(Path logPath, Map<String, Task> taskMap,
+                             long offset, int lineCount, long generation) {
+        Path path = snapshotPath(logPath);
+        Metrics.Timer timer = Metrics.time(Metrics.Phase.SNAPSHOT);
+        try {
+            // Case: concurrent invocations may write snapshots at once
+            Path temp = Files.createTempFile(path.toAbsolutePath()
+                    .getParent(), path.getFileName().toString(), ".tmp");
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeLong(offset);
+                out.writeInt(lineCount);
+                out.writeLong(generation);
+                out.writeLong(fingerprint(logPath, offset));
+                writeTasks(out, taskMap);
+                Metrics.add(Metrics.Counter.BYTES_WRITTEN, out.size());
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Error writing snapshot: " + e.getMessage());
+        } finally {
+            timer.close();
+        }
+    }
+
+    // CRC of the whole range the snapshot covers, so an edit anywhere in
+    // it, even one that keeps the log's length, discards the snapshot
+    private static long fingerprint(Path logPath, long offset)
+            throws IOException {
+        CRC32C crc = new CRC32C();
+        try (FileChannel channel = FileChannel.open(logPath,
+                StandardOpenOption.READ)) {
+            for (long position = 0; position < offset; position += CHUNK) {
+                crc.update(channel.map(FileChannel.MapMode.READ_ONLY,
+                        position, Math.min(CHUNK, offset - position)));
+            }
+        }
+        Metrics.add(Metrics.Counter.BYTES_READ, offset);
+        return (offset << 32) ^ crc.getValue();
+    }
+
+    static void writeTasks(DataOutputStream out, Map<String, Task> taskMap)
+            throws IOException {
+        out.writeInt(taskMap.size());
+        for (Task task : taskMap.values()) {
+            writeTask(out, task);
+        }
+    }
+
+    static Map<String, Task> readTasks(DataInputStream in)
+            throws IOException {
+        Map<String, Task> taskMap = new HashMap<>();
+        readTasks(in, task -> taskMap.put(task.getName(), task));
+        return taskMap;
+    }
+
+    // Hands over the tasks one at a time
+    static void readTasks(DataInputStream in, Consumer<Task> action)
+            throws IOException {
+        int taskCount = in.readInt();
+        for (int i = 0; i < taskCount; i++) {
+            action.accept(readTask(in));
+        }
+    }
+
+    private static void writeTask(DataOutputStream out, Task task)
+            throws IOException {
+        writeString(out, task.getName());
+        writeString(out, task.getDescription());
+        writeString(out, task.getSize());
+        out.writeLong(task.getTotalDuration().getSeconds());
+        out.writeInt(task.getClosedSessions());
+        out.writeLong(task.getMinTimeEntry().getSeconds());
+        out.writeLong(task.getMaxTimeEntry().getSeconds());
+        out.writeInt(task.getSealedSessions());
+        TimeEntries entries = task.getTimeEntries();
+        out.writeInt(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            out.writeLong(entries.getStart(i));
+            out.writeLong(entries.getStop(i));
+        }
+        TimeBuckets buckets = task.getTimeBuckets();
+        out.writeInt(buckets.size());
+        for (int i = 0; i < buckets.size(); i++) {
+            out.writeLong(buckets.getDay(i));
+            out.writeLong(buckets.getSeconds(i));
+        }
+        out.writeInt(buckets.getRunCount());
+        for (int i = 0; i < buckets.getRunCount(); i++) {
+            out.writeLong(buckets.getRunStart(i));
+            out.writeLong(buckets.getRunEnd(i));
+        }
+        SessionSketch sketch = task.getSessionSketch();
+        out.writeLong(sketch.getZeroCount());
+        out.writeInt(sketch.getOffset());
+        out.writeInt(sketch.getBinCount());
+        for (int i = 0; i < sketch.getBinCount(); i++) {
+            out.writeInt(sketch.getBin(i));
+        }
+    }
+
+    private static Task readTask(DataInputStream in) throws IOException {
+        String name = readString(in);
+        String description = readString(in);
+        String size = readString(in);
+        long totalSeconds = in.readLong();
+        int closedSessions = in.readInt();
+        long minSeconds = in.readLong();
+        long maxSeconds = in.readLong();
+        int sealedSessions = in.readInt();
+        int entryCount = in.readInt();
+        TimeEntries entries = new TimeEntries();
+        for (int i = 0; i < entryCount; i++) {
+            entries.start(in.readLong());
+            long stop = in.readLong();
+            if (stop != TimeEntries.OPEN) {
+                entries.stop(stop);
+            }
+        }
+        int bucketCount = in.readInt();
+        TimeBuckets buckets = new TimeBuckets();
+        for (int i = 0; i < bucketCount; i++) {
+            buckets.addToDay(in.readLong(), in.readLong());
+        }
+        int runCount = in.readInt();
+        for (int i = 0; i < runCount; i++) {
+            buckets.addRun(in.readLong(), in.readLong());
+        }
+        SessionSketch sketch = new SessionSketch();
+        sketch.addZeros(in.readLong());
+        int offset = in.readInt();
+        int binCount = in.readInt();
+        for (int i = 0; i < binCount; i++) {
+            int sessions = in.readInt();
+            if (sessions > 0) {
+                sketch.addToBin(offset + i, sessions);
+            }
         }
+        Task task = new Task(name, entries, buckets, sketch, totalSeconds,
+                closedSessions, minSeconds, maxSeconds, sealedSessions);
+        task.setDescription(description);
+        task.setSize(size);
+        return task;
     }
 
-    public void renameTasks(String oldName, String newName) {
-        updateLogFile(line -> renameTaskInLine(line, oldName, newName));
+    // Length and UTF-8 bytes rather than writeUTF, which refuses strings
+    // over 64 KB encoded, e.g. a long description
+    private static void writeString(DataOutputStream out, String value)
+            throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
     }
 
-    public void deleteTasks(String taskName) {
-        updateLogFile(line -> containsTask(line, taskName) ? null : line);
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
     }
+}
 
-    private void updateLogFile(Function<String, String> operationFunction) {
-        try {
-            Path path = Paths.get(logFilePath);
-            List<String> logLines = Files.readAllLines(path);
-            List<String> modifiedLines = logLines.stream()
-                    .map(operationFunction)
-                    .filter(Objects::nonNull)
-                    .collect(Collectors.toList());
-            Files.write(path, modifiedLines);
-        } catch (IOException e) {
-            System.err.println("Error writing to log file: " + e.getMessage());
+// Sealed history of a CSV log. Rollover renames the active log to the next
+// numbered segment (task-manager.log.000001, ...); a background fold
+// replays sealed segments into task-manager.log.sealed, which keeps one
+// summary record per live task, and then deletes them.
+class LogSegments {
+    private static final int MAGIC = 0x544d4334;
+    private static final int MAX_RETRIES = 8;
+
+    private LogSegments() {}
+
+    static class SealedState {
+        final Map<String, Task> taskMap;
+        // Last segment folded into the sealed file
+        final long folded;
+        // Last segment included in taskMap
+        final long generation;
+
+        SealedState(Map<String, Task> taskMap, long folded,
+                    long generation) {
+            this.taskMap = taskMap;
+            this.folded = folded;
+            this.generation = generation;
         }
     }
 
-    private String renameTaskInLine(String line, String oldName,
-                                    String newName) {
-        String[] parts = line.split(",", 3);
+    static Path sealedPath(Path logPath) {
+        return logPath.resolveSibling(logPath.getFileName() + ".sealed");
+    }
 
-        if (parts.length == 3) {
-            String timestamp = parts[0];
-            String taskName = parts[1];
-            String restOfLine = parts[2];
+    static Path segmentPath(Path logPath, long number) {
+        return logPath.resolveSibling(String.format("%s.%06d",
+                logPath.getFileName(), number));
+    }
 
-            if (taskName.equals(oldName)) {
-                taskName = newName;
+    // Numbers of the segments still waiting to be folded, in order
+    static List<Long> segmentNumbers(Path logPath) throws IOException {
+        Path dir = logPath.toAbsolutePath().getParent();
+        String prefix = logPath.getFileName() + ".";
+        List<Long> numbers = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir,
+                prefix + "[0-9][0-9][0-9][0-9][0-9][0-9]*")) {
+            for (Path entry : entries) {
+                String suffix = entry.getFileName().toString()
+                        .substring(prefix.length());
+                if (suffix.chars().allMatch(Character::isDigit)) {
+                    numbers.add(Long.parseLong(suffix));
+                }
             }
-            return timestamp + "," + taskName + "," + restOfLine;
         }
-        return line;
+        Collections.sort(numbers);
+        return numbers;
     }
 
-    private boolean containsTask(String line, String taskName) {
-        String[] parts = line.split(",", 3);
-        return parts.length > 1 && parts[1].trim().equalsIgnoreCase(taskName);
+    // Numbers of the segments after folded, in order
+    static List<Long> pendingSegments(Path logPath, long folded)
+            throws IOException {
+        List<Long> pending = new ArrayList<>();
+        for (long number : segmentNumbers(logPath)) {
+            if (number > folded) {
+                pending.add(number);
+            }
+        }
+        return pending;
     }
 
-    public void logAction(String taskName, String command,
-                          String description, String size) {
-        String logEntry = String.format("%s,%s,%s,%s,%s",
-                Instant.now().toString(), taskName, command,
-                description, size);
+    // Last segment ever sealed, 0 when the log never rolled over
+    static long generation(Path logPath) throws IOException {
+        List<Long> numbers = segmentNumbers(logPath);
+        long folded = readFolded(logPath);
+        return numbers.isEmpty() ? folded :
+                Math.max(folded, numbers.get(numbers.size() - 1));
+    }
 
-        try (FileWriter fw = new FileWriter(logFilePath, true);
-             BufferedWriter writer = new BufferedWriter(fw)) {
-            writer.append(logEntry);
-            writer.newLine();
-        } catch (IOException e) {
-            System.err.println("Error writing to log file: " + e.getMessage());
+    // Seals the active log, the caller holds its LogLock
+    static long seal(Path logPath) throws IOException {
+        long number = generation(logPath) + 1;
+        if (!endsWithNewline(logPath)) {
+            LogFiles.terminateLastLine(logPath);
         }
+        Files.move(logPath, segmentPath(logPath, number),
+                StandardCopyOption.ATOMIC_MOVE);
+        LogSnapshot.invalidate(logPath);
+        return number;
     }
-}
 
-class LogParser implements TaskLogParser {
-    private final Map<String, Task> taskMap;
-    private final String logFilePath;
-    public LogParser(String logFilePath) {
-        this.taskMap = new HashMap<>();
-        this.logFilePath = logFilePath;
-    }
-    
-    public Map<String, Task> parseLogFile() {
-        try {
-            Path path = Paths.get(logFilePath);
-            List<String> logLines = Files.readAllLines(path);
-            Iterator<String> iterator = logLines.iterator();
-            int lineNumber = 1;
+    // Replays the sealed file and the segments after it
+    static SealedState load(Path logPath) throws IOException {
+        long lastFolded = -1;
+        for (int attempt = 0; ; attempt++) {
+            Map<String, Task> taskMap = new HashMap<>();
+            long folded = readBase(logPath,
+                    task -> taskMap.put(task.getName(), task));
+            List<Long> pending = pendingSegments(logPath, folded);
 
-            while (iterator.hasNext()) {
-                String line = iterator.next();
-                if (!parseLogLine(line, lineNumber)) {
-                    iterator.remove();
+            // Case: a fold replaced the sealed file while it was read
+            boolean gap = !pending.isEmpty() && pending.get(0) != folded + 1;
+            if (gap && folded != lastFolded && attempt < MAX_RETRIES) {
+                lastFolded = folded;
+                continue;
+            } else if (gap) {
+                System.err.println("Error loading log segments: segment "
+                        + (folded + 1) + " is missing");
+            }
+            try {
+                long generation = folded;
+                for (long number : pending) {
+                    replay(segmentPath(logPath, number), taskMap);
+                    generation = number;
                 }
-                lineNumber++;
+                return new SealedState(taskMap, folded, generation);
+            } catch (NoSuchFileException e) {
+                if (attempt >= MAX_RETRIES) {
+                    throw e;
+                }
+                lastFolded = folded;
             }
-            Files.write(path, logLines);
-        } catch (IOException e) {
-            System.err.println("Error reading the log file: "
-                    + e.getMessage());
         }
-        return taskMap;
     }
 
-    private boolean parseLogLine(String line, int lineNum) {
-        if (line.trim().isEmpty()) { return false; }
-        String[] parts = line.split(",");
-
-        String time = parts[0];
-        String name = parts[1].toLowerCase();
-        String command = parts[2].toLowerCase();
-        String desc = parts[3];
-        String size = parts[4].toUpperCase();
-
-        if(!validArgs(time, name, desc, command, size)){
-            System.err.println("Malformed at line " +
-                    lineNum + ", removing line <" + line + ">");
-            return false;
+    // Errors were reported while the lines were in the active log, a
+    // sealed segment replays silently
+    private static void replay(Path segment, Map<String, Task> taskMap)
+            throws IOException {
+        TaskReplayer replayer = new TaskReplayer(taskMap,
+                (lineNum, message) -> {});
+        TaskNames names = new TaskNames();
+        try (FileChannel channel = FileChannel.open(segment,
+                StandardOpenOption.READ)) {
+            new LogLineReader(channel).read(0, 1,
+                    (buf, start, end, position, next, lineNum) -> {
+                if (LogLineReader.isBlank(buf, start, end)) {
+                    return;
+                }
+                LogRecord record = LogParser.tokenize(buf, start, end,
+                        names);
+                if (record != null) {
+                    replayer.apply(record, lineNum);
+                }
+            });
         }
+    }
 
-        Instant parsedTime = Instant.parse(time).
-                truncatedTo(ChronoUnit.SECONDS);
-
-        // Case: Start a new task
-        Task task = taskMap.get(name);
-        if(command.equals("start") && task == null){
-            taskMap.put(name, new Task(parsedTime, name));
-            return true;
-        }
+    // A daemon thread, so a short command does not wait for the fold to
+    // exit; a fold cut short leaves the sealed file and segments as they
+    // were, and the next replay that finds segments pending starts over
+    public static void foldInBackground(Path logPath) {
+        Thread fold = new Thread(() -> fold(logPath), "segment-fold");
+        fold.setDaemon(true);
+        fold.start();
+    }
 
-        // Case: commands but never started
-        if(command.matches("stop|describe|size")
-                && task == null){
-            printError(lineNum, name, " never started");
+    // Folds in the background when sealed segments are still pending
+    public static void resumeFold(Path logPath, long generation)
+            throws IOException {
+        if (generation > readFolded(logPath)) {
+            foldInBackground(logPath);
         }
-
-        // Case valid commands, handle logic errors
-        return handleCommands(name, lineNum, command, parsedTime, desc, size);
     }
 
-    private boolean handleCommands(String name, int lineNum,
-                                   String command, Instant parsedTime,
-                                   String desc, String size){
-        switch (command){
-            case "start":
-                if(validStart(name)){
-                    printError(lineNum, name, " never stopped");
-                    return false;
+    // Folds every sealed segment into the sealed file, unless another
+    // process is already doing so
+    public static void fold(Path logPath) {
+        try (FileChannel channel = FileChannel.open(foldLockPath(logPath),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            FileLock lock = channel.tryLock();
+            if (lock == null) {
+                return;
+            }
+            try {
+                SealedState state = load(logPath);
+                if (state.generation == state.folded) {
+                    return;
                 }
-                taskMap.get(name).upsertTimeEntry(parsedTime, command);
-                break;
-            case "stop":
-                if(validStop(name)){
-                    printError(lineNum, name, " no matching start");
-                    return false;
-                } else if(taskMap.get(name).isNegativeDuration(parsedTime)){
-                    printError(lineNum, name, " negative duration");
-                    return false;
+                for (Task task : state.taskMap.values()) {
+                    task.seal();
                 }
-                taskMap.get(name).upsertTimeEntry(parsedTime, command);
-                break;
-            case "describe":
-                taskMap.get(name).setDescription(desc);
-                if(!size.equals("NULL")){
-                    taskMap.get(name).setSize(size);
+                writeBase(logPath, state.taskMap, state.generation);
+                for (long number : segmentNumbers(logPath)) {
+                    if (number <= state.generation) {
+                        Files.deleteIfExists(segmentPath(logPath, number));
+                    }
                 }
-                break;
-            case "size":
-                taskMap.get(name).setSize(size);
-                break;
-            default:
-                return false;
+            } finally {
+                lock.release();
+            }
+        } catch (IOException e) {
+            System.err.println("Error folding log segments: "
+                    + e.getMessage());
         }
-        return true;
     }
 
-    private boolean validStart(String name){
-        return !taskMap.get(name).lastEntryStopped();
+    // Drops all sealed history, waiting for a running fold to finish
+    public static void clear(Path logPath) throws IOException {
+        try (FileChannel channel = FileChannel.open(foldLockPath(logPath),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            FileLock lock = channel.lock();
+            try {
+                for (long number : segmentNumbers(logPath)) {
+                    Files.deleteIfExists(segmentPath(logPath, number));
+                }
+                Files.deleteIfExists(sealedPath(logPath));
+            } finally {
+                lock.release();
+            }
+        }
     }
 
-    private boolean validStop(String name){
-        return taskMap.get(name).lastEntryStopped();
+    private static boolean endsWithNewline(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.READ)) {
+            if (channel.size() == 0) {
+                return true;
+            }
+            ByteBuffer last = ByteBuffer.allocate(1);
+            channel.read(last, channel.size() - 1);
+            return last.get(0) == '\n';
+        }
     }
 
-    private boolean validArgs(String time, String name, String desc,
-                              String command, String size){
-        // Valid Time
-        try {
-            Instant.parse(time);
-        } catch (Exception e) {
-            return false;
-        }
-        // Name and Command required for all commands
-        if (name.equals("null")
-                || !command.matches("start|stop|describe|size")){
-            return false;
-        }
+    private static Path foldLockPath(Path logPath) {
+        return logPath.resolveSibling(logPath.getFileName() + ".fold.lock");
+    }
 
-        // TShirtSize is required
-        if(command.equals("size") && size.equals("NULL")
-                && !size.matches("S|M|L|XL")){
-            return false;
+    private static long readFolded(Path logPath) throws IOException {
+        Path path = sealedPath(logPath);
+        if (!Files.exists(path)) {
+            return 0;
         }
-
-        if (command.equals("describe") && desc.equals("null")
-                && !size.equals("NULL") && !size.matches("S|M|L|XL")){
-            return false;
+        try (DataInputStream in = new DataInputStream(
+                Files.newInputStream(path))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a sealed task log: " + path);
+            }
+            return in.readLong();
+        } catch (NoSuchFileException e) {
+            return 0;
         }
+    }
 
-        return true;
+    // Reads the sealed tasks, returns the last segment folded into them
+    static long readBase(Path logPath, Consumer<Task> action)
+            throws IOException {
+        Path path = sealedPath(logPath);
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a sealed task log: " + path);
+            }
+            long folded = in.readLong();
+            LogSnapshot.readTasks(in, action);
+            Metrics.add(Metrics.Counter.BYTES_READ, Files.size(path));
+            return folded;
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
     }
 
-    private void printError(int lineNum, String name, String condition){
-        System.err.println("Log Parsing Error: line " +
-                lineNum + " " + name + " " + condition + ", removing " +
-                "line");
+    private static void writeBase(Path logPath, Map<String, Task> taskMap,
+                                  long folded) throws IOException {
+        Path path = sealedPath(logPath);
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temp.toFile());
+             DataOutputStream out = new DataOutputStream(
+                     new BufferedOutputStream(file))) {
+            out.writeInt(MAGIC);
+            out.writeLong(folded);
+            LogSnapshot.writeTasks(out, taskMap);
+            out.flush();
+            file.getFD().sync();
+            Metrics.add(Metrics.Counter.BYTES_WRITTEN, out.size());
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
     }
 }
 
 class Task {
-    private final String name;
+    static final List<String> SIZES = List.of("S", "M", "L", "XL");
+
+    private String name;
     private String description;
     private String size;
-    private final Stack<TimeEntry> timeEntries;
+    private final TimeEntries timeEntries;
+    private final TimeBuckets timeBuckets;
+    private final SessionSketch sessionSketch;
+    // Running aggregates over closed sessions, in seconds
+    private long totalSeconds;
+    private int closedSessions;
+    private long minSeconds;
+    private long maxSeconds;
+    // Closed sessions folded into the aggregates and dropped from entries
+    private int sealedSessions;
 
     public Task(Instant startTime, String name){
+        this(startTime.getEpochSecond(), name);
+    }
+
+    public Task(long startSecond, String name){
+        this.name = name;
+        this.timeEntries = new TimeEntries();
+        this.timeBuckets = new TimeBuckets();
+        this.sessionSketch = new SessionSketch();
+        this.timeEntries.start(startSecond);
+    }
+
+    // Restores a task saved by LogSnapshot or LogSegments
+    Task(String name, TimeEntries timeEntries, TimeBuckets timeBuckets,
+         SessionSketch sessionSketch, long totalSeconds, int closedSessions,
+         long minSeconds, long maxSeconds, int sealedSessions) {
         this.name = name;
-        this.timeEntries = new Stack<>();
-        this.timeEntries.push(new TimeEntry(startTime));
+        this.timeEntries = timeEntries;
+        this.timeBuckets = timeBuckets;
+        this.sessionSketch = sessionSketch;
+        this.totalSeconds = totalSeconds;
+        this.closedSessions = closedSessions;
+        this.minSeconds = minSeconds;
+        this.maxSeconds = maxSeconds;
+        this.sealedSessions = sealedSessions;
     }
 
     public String getName(){
         return this.name;
     }
 
+    public void setName(String name){
+        this.name = name;
+    }
+
     public boolean lastEntryStopped(){
-        return timeEntries.peek().hasStop();
+        return timeEntries.lastStopped();
     }
 
     public boolean isNegativeDuration(Instant stop){
-        return timeEntries.peek().isNegativeDuration(stop);
+        return isNegativeDuration(stop.getEpochSecond());
+    }
+
+    public boolean isNegativeDuration(long stopSecond){
+        return stopSecond < timeEntries.lastStart();
     }
 
     public int getSessions(){
-        return timeEntries.size();
+        return sealedSessions + timeEntries.size();
+    }
+
+    int getClosedSessions(){
+        return closedSessions;
+    }
+
+    int getSealedSessions(){
+        return sealedSessions;
+    }
+
+    // Keeps only the aggregates of closed sessions, and the open session
+    public void seal(){
+        sealedSessions += timeEntries.dropClosed();
+    }
+
+    public TimeEntries getTimeEntries(){
+        return timeEntries;
+    }
+
+    public TimeBuckets getTimeBuckets(){
+        return timeBuckets;
+    }
+
+    public SessionSketch getSessionSketch(){
+        return sessionSketch;
     }
 
     public void upsertTimeEntry(Instant time, String command) {
+        upsertTimeEntry(time.getEpochSecond(), command);
+    }
+
+    public void upsertTimeEntry(long epochSecond, String command) {
         if (command.equals("start")){
-            timeEntries.push(new TimeEntry(time));
+            timeEntries.start(epochSecond);
         } else if (command.equals("stop")) {
-            timeEntries.peek().setStop(time);
+            long startSecond = timeEntries.lastStart();
+            timeEntries.stop(epochSecond);
+            addClosedSession(epochSecond - startSecond);
+            timeBuckets.add(startSecond, epochSecond);
         }
     }
 
+    private void addClosedSession(long seconds) {
+        minSeconds = closedSessions == 0 ? seconds :
+                Math.min(minSeconds, seconds);
+        maxSeconds = closedSessions == 0 ? seconds :
+                Math.max(maxSeconds, seconds);
+        totalSeconds += seconds;
+        closedSessions++;
+        sessionSketch.add(seconds);
+    }
+
     public String getSize() {
         return size;
     }
@@ -653,68 +7767,416 @@ class Task {
     }
 
     public Duration getTotalDuration(){
-        return timeEntries.stream()
-                .filter(TimeEntry::hasStop)
-                .map(TimeEntry::getDuration)
-                .reduce(Duration::plus)
-                .orElse(Duration.ZERO);
+        return Duration.ofSeconds(totalSeconds);
+    }
+
+    // Time since the open session started, zero when there is none
+    public Duration getRunningDuration(long nowSecond){
+        return lastEntryStopped() ? Duration.ZERO :
+                Duration.ofSeconds(Math.max(0,
+                        nowSecond - timeEntries.lastStart()));
     }
 
     public Duration getMinTimeEntry() {
-        return timeEntries.stream()
-                .filter(TimeEntry::hasStop)
-                .map(TimeEntry::getDuration)
-                .min(Duration::compareTo)
-                .orElse(Duration.ZERO);
+        return Duration.ofSeconds(minSeconds);
     }
 
     public Duration getMaxTimeEntry() {
-        return timeEntries.stream()
-                .filter(TimeEntry::hasStop)
-                .map(TimeEntry::getDuration)
-                .max(Duration::compareTo)
-                .orElse(Duration.ZERO);
+        return Duration.ofSeconds(maxSeconds);
+    }
+
+    public Duration getPercentileTimeEntry(double quantile) {
+        return sessionSketch.quantile(quantile, minSeconds, maxSeconds);
     }
 
     public Duration getAvgTimeEntry() {
-        int entriesCount = lastEntryStopped() ?
-                timeEntries.size() : timeEntries.size() - 1;
-        return getTotalDuration().dividedBy(entriesCount).
-                truncatedTo(ChronoUnit.SECONDS);
+        return closedSessions == 0 ? Duration.ZERO :
+                Duration.ofSeconds(totalSeconds / closedSessions);
     }
 
     public void setSize(String size) {
         this.size = size;
     }
 
+    public static boolean isValidSize(String size) {
+        return SIZES.contains(size.toUpperCase(Locale.ROOT));
+    }
+
     public void setDescription(String description) {
         this.description = description;
     }
 
 }
 
-class TimeEntry{
-    private final Instant start;
-    private Instant stop;
-    public TimeEntry(Instant start){
-        this.start = start;
-        this.stop = null;
+// Session history as parallel start/stop columns in epoch seconds
+class TimeEntries {
+    static final long OPEN = Long.MIN_VALUE;
+
+    private long[] starts;
+    private long[] stops;
+    private int size;
+
+    public TimeEntries() {
+        this.starts = new long[2];
+        this.stops = new long[2];
     }
 
-    public void setStop(Instant end) {
-        stop = end;
+    public void start(long epochSecond) {
+        if (size == starts.length) {
+            int capacity = size + (size >> 1) + 1;
+            starts = Arrays.copyOf(starts, capacity);
+            stops = Arrays.copyOf(stops, capacity);
+        }
+        starts[size] = epochSecond;
+        stops[size] = OPEN;
+        size++;
     }
 
-    public boolean isNegativeDuration(Instant stop){
-        return Duration.between(start, stop).compareTo(Duration.ZERO) < 0;
+    public void stop(long epochSecond) {
+        stops[size - 1] = epochSecond;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getStart(int index) {
+        return starts[index];
+    }
+
+    public long getStop(int index) {
+        return stops[index];
+    }
+
+    public boolean hasStop(int index) {
+        return stops[index] != OPEN;
+    }
+
+    public boolean lastStopped() {
+        return size == 0 || hasStop(size - 1);
+    }
+
+    // Removes closed sessions, keeping an open last one, returns how many
+    // were removed
+    public int dropClosed() {
+        int dropped = lastStopped() ? size : size - 1;
+        if (dropped > 0) {
+            long openStart = lastStopped() ? OPEN : lastStart();
+            size = 0;
+            starts = new long[2];
+            stops = new long[2];
+            if (openStart != OPEN) {
+                start(openStart);
+            }
+        }
+        return dropped;
+    }
+
+    public long lastStart() {
+        return starts[size - 1];
+    }
+}
+
+// Closed session seconds per UTC day. Partial days are kept sorted by day;
+// the whole days a long session covers are kept as disjoint runs, so a
+// session adds at most three entries however many days it spans.
+class TimeBuckets {
+    static final long SECONDS_PER_DAY = 86_400;
+
+    interface BucketConsumer {
+        void accept(long epochDay, long seconds);
+    }
+
+    private long[] days;
+    private long[] seconds;
+    private int size;
+    // Whole days [runStarts[i], runEnds[i]), sorted and disjoint
+    private long[] runStarts;
+    private long[] runEnds;
+    private int runCount;
+
+    public TimeBuckets() {
+        this.days = new long[2];
+        this.seconds = new long[2];
+        this.runStarts = new long[0];
+        this.runEnds = new long[0];
+    }
+
+    public void add(long startSecond, long stopSecond) {
+        if (stopSecond <= startSecond) {
+            return;
+        }
+        long firstDay = Math.floorDiv(startSecond, SECONDS_PER_DAY);
+        long lastDay = Math.floorDiv(stopSecond, SECONDS_PER_DAY);
+        // Case: the session starts and stops on the same day
+        if (firstDay == lastDay) {
+            addToDay(firstDay, stopSecond - startSecond);
+            return;
+        }
+        long wholeFrom = firstDay;
+        if (startSecond > firstDay * SECONDS_PER_DAY) {
+            addToDay(firstDay, (firstDay + 1) * SECONDS_PER_DAY
+                    - startSecond);
+            wholeFrom++;
+        }
+        if (wholeFrom < lastDay) {
+            addRun(wholeFrom, lastDay);
+        }
+        if (stopSecond > lastDay * SECONDS_PER_DAY) {
+            addToDay(lastDay, stopSecond - lastDay * SECONDS_PER_DAY);
+        }
+    }
+
+    public void addToDay(long day, long amount) {
+        // Case: sessions mostly close in order, so the last day is hot
+        if (size > 0 && days[size - 1] == day) {
+            seconds[size - 1] += amount;
+            return;
+        }
+        int index = size == 0 || days[size - 1] < day ? size :
+                Arrays.binarySearch(days, 0, size, day);
+        if (index >= 0 && index < size) {
+            seconds[index] += amount;
+            return;
+        }
+        index = index < 0 ? -index - 1 : index;
+        if (size == days.length) {
+            int capacity = size + (size >> 1) + 1;
+            days = Arrays.copyOf(days, capacity);
+            seconds = Arrays.copyOf(seconds, capacity);
+        }
+        System.arraycopy(days, index, days, index + 1, size - index);
+        System.arraycopy(seconds, index, seconds, index + 1, size - index);
+        days[index] = day;
+        seconds[index] = amount;
+        size++;
+    }
+
+    // Adds whole days [fromDay, toDay)
+    public void addRun(long fromDay, long toDay) {
+        int index = runCount == 0 || runStarts[runCount - 1] < fromDay ?
+                runCount : firstIndex(runStarts, runCount, fromDay);
+        // Case: overlapping sessions, count those days one by one
+        if ((index > 0 && runEnds[index - 1] > fromDay)
+                || (index < runCount && runStarts[index] < toDay)) {
+            for (long day = fromDay; day < toDay; day++) {
+                addToDay(day, SECONDS_PER_DAY);
+            }
+            return;
+        }
+        if (index > 0 && runEnds[index - 1] == fromDay
+                && (index == runCount || runStarts[index] > toDay)) {
+            runEnds[index - 1] = toDay;
+            return;
+        }
+        if (runCount == runStarts.length) {
+            int capacity = runCount + (runCount >> 1) + 1;
+            runStarts = Arrays.copyOf(runStarts, capacity);
+            runEnds = Arrays.copyOf(runEnds, capacity);
+        }
+        System.arraycopy(runStarts, index, runStarts, index + 1,
+                runCount - index);
+        System.arraycopy(runEnds, index, runEnds, index + 1,
+                runCount - index);
+        runStarts[index] = fromDay;
+        runEnds[index] = toDay;
+        runCount++;
+    }
+
+    // Seconds in days [fromDay, toDay)
+    public long total(long fromDay, long toDay) {
+        long[] total = new long[1];
+        forEach(fromDay, toDay, (day, amount) -> total[0] += amount, true);
+        return total[0];
+    }
+
+    // Visits the seconds of the days in [fromDay, toDay) that have any, a
+    // day may be visited more than once
+    public void forEach(long fromDay, long toDay, BucketConsumer consumer) {
+        forEach(fromDay, toDay, consumer, false);
+    }
+
+    // Only touches the entries that overlap the range; with wholeRuns a
+    // run is passed as one call carrying all its seconds
+    private void forEach(long fromDay, long toDay, BucketConsumer consumer,
+                         boolean wholeRuns) {
+        for (int i = firstIndex(days, size, fromDay);
+             i < size && days[i] < toDay; i++) {
+            consumer.accept(days[i], seconds[i]);
+        }
+        int run = firstIndex(runStarts, runCount, fromDay);
+        if (run > 0 && runEnds[run - 1] > fromDay) {
+            run--;
+        }
+        for (; run < runCount && runStarts[run] < toDay; run++) {
+            long from = Math.max(runStarts[run], fromDay);
+            long to = Math.min(runEnds[run], toDay);
+            if (wholeRuns) {
+                consumer.accept(from, (to - from) * SECONDS_PER_DAY);
+                continue;
+            }
+            for (long day = from; day < to; day++) {
+                consumer.accept(day, SECONDS_PER_DAY);
+            }
+        }
+    }
+
+    private static int firstIndex(long[] sorted, int length, long value) {
+        int index = Arrays.binarySearch(sorted, 0, length, value);
+        return index < 0 ? -index - 1 : index;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getDay(int index) {
+        return days[index];
+    }
+
+    public long getSeconds(int index) {
+        return seconds[index];
+    }
+
+    public int getRunCount() {
+        return runCount;
+    }
+
+    public long getRunStart(int index) {
+        return runStarts[index];
+    }
+
+    public long getRunEnd(int index) {
+        return runEnds[index];
+    }
+}
+
+// Session lengths in a log-bucketed quantile sketch: bin i counts the
+// sessions in (GAMMA^(i-1), GAMMA^i] seconds, so any quantile is within
+// RELATIVE_ACCURACY of the real session length, and at most MAX_BINS bins
+// are kept however many sessions are added.
+class SessionSketch {
+    static final double RELATIVE_ACCURACY = 0.01;
+    static final int MAX_BINS = 2048;
+    private static final double GAMMA =
+            (1 + RELATIVE_ACCURACY) / (1 - RELATIVE_ACCURACY);
+    private static final double LOG_GAMMA = Math.log(GAMMA);
+
+    // Sessions shorter than a second
+    private long zeroCount;
+    private long count;
+    private int[] bins;
+    private int offset;
+
+    public SessionSketch() {
+        this.bins = new int[0];
+    }
+
+    public void add(long seconds) {
+        if (seconds <= 0) {
+            addZeros(1);
+        } else {
+            addToBin((int) Math.ceil(Math.log(seconds) / LOG_GAMMA), 1);
+        }
+    }
+
+    public void addZeros(long sessions) {
+        zeroCount += sessions;
+        count += sessions;
+    }
+
+    public void addToBin(int index, int sessions) {
+        if (bins.length == 0) {
+            offset = index;
+            bins = new int[1];
+        } else if (index < offset || index >= offset + bins.length) {
+            grow(index);
+        }
+        // Case: the lowest bins were collapsed to stay under MAX_BINS
+        bins[Math.max(index, offset) - offset] += sessions;
+        count += sessions;
+    }
+
+    public void merge(SessionSketch other) {
+        addZeros(other.zeroCount);
+        for (int i = 0; i < other.bins.length; i++) {
+            if (other.bins[i] > 0) {
+                addToBin(other.offset + i, other.bins[i]);
+            }
+        }
+    }
+
+    // Session length at quantile q in [0, 1], zero when empty. The bin
+    // midpoint can lie up to 1% past the shortest or longest session, so
+    // it is clamped to them.
+    public Duration quantile(double q, long minSeconds, long maxSeconds) {
+        if (count == 0) {
+            return Duration.ZERO;
+        }
+        long seconds = quantile(q).getSeconds();
+        return Duration.ofSeconds(Math.max(minSeconds,
+                Math.min(maxSeconds, seconds)));
+    }
+
+    public Duration quantile(double q) {
+        if (count == 0) {
+            return Duration.ZERO;
+        }
+        // Nearest rank: the smallest session with at least q of all
+        // sessions at or below it
+        long rank = Math.max(0, (long) Math.ceil(q * count) - 1);
+        long seen = zeroCount;
+        if (rank < seen) {
+            return Duration.ZERO;
+        }
+        int bin = 0;
+        while (bin < bins.length - 1 && (seen += bins[bin]) <= rank) {
+            bin++;
+        }
+        // Midpoint of the bin, relative to its bounds
+        double seconds = 2 * Math.pow(GAMMA, offset + bin) / (GAMMA + 1);
+        return Duration.ofSeconds(Math.round(seconds));
+    }
+
+    private void grow(int index) {
+        int low = Math.min(offset, index);
+        int high = Math.max(offset + bins.length, index + 1);
+        // Leave room for a few more bins in the direction of growth
+        int slack = Math.max(4, bins.length >> 1);
+        if (index < offset) {
+            low -= slack;
+        } else {
+            high += slack;
+        }
+        if (high - low > MAX_BINS) {
+            low = high - MAX_BINS;
+        }
+        int[] grown = new int[high - low];
+        for (int i = 0; i < bins.length; i++) {
+            grown[Math.max(offset + i, low) - low] += bins[i];
+        }
+        bins = grown;
+        offset = low;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getZeroCount() {
+        return zeroCount;
+    }
+
+    public int getOffset() {
+        return offset;
     }
 
-    public boolean hasStop(){
-        return stop != null;
+    public int getBinCount() {
+        return bins.length;
     }
 
-    public Duration getDuration(){
-        return Duration.between(start, stop);
+    public int getBin(int index) {
+        return bins[index];
     }
 }
 
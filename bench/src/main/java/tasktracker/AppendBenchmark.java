@@ -0,0 +1,61 @@
+package tasktracker;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Latency of a single appended action, sampled so the percentiles show
+// the cost of the lock and of each durability level
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AppendBenchmark {
+    @Param({"none", "data"})
+    public String durability;
+
+    @Param({"false", "true"})
+    public boolean resident;
+
+    private Path dir;
+    private Logger logger;
+    private long actions;
+
+    @Setup(Level.Trial)
+    public void open() throws IOException {
+        dir = Files.createTempDirectory("tm-append");
+        logger = new Logger(dir.resolve("task-manager.log").toString(),
+                resident, Durability.parse(durability));
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanUp() throws IOException {
+        BenchFixtures.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public void append() {
+        long action = actions++;
+        logger.logAction(Instant.now(), LogGenerator.taskName(
+                (int) (action >> 1) % 1000), action % 2 == 0 ? "start" :
+                "stop", null, null);
+    }
+}
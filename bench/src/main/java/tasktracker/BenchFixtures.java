@@ -0,0 +1,74 @@
+package tasktracker;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+// Scratch directories holding a generated log, and silencing of the
+// console output the commands print while they are measured
+class BenchFixtures {
+    private static final PrintStream NULL_STREAM =
+            new PrintStream(OutputStream.nullOutputStream());
+    private static PrintStream savedOut;
+    private static PrintStream savedErr;
+
+    private BenchFixtures() {
+    }
+
+    static Path generate(Path dir, int tasks, int sessions,
+                         double malformedRatio) throws IOException {
+        Path log = dir.resolve("pristine.log");
+        new LogGenerator(tasks, sessions, malformedRatio, 1).write(log);
+        return log;
+    }
+
+    // Puts a fresh copy of the pristine log in place and drops the sidecar
+    // files earlier invocations left behind
+    static void restore(Path pristine, Path log) throws IOException {
+        Files.copy(pristine, log, StandardCopyOption.REPLACE_EXISTING);
+        Files.deleteIfExists(snapshotOf(log));
+    }
+
+    static Path snapshotOf(Path log) {
+        return log.resolveSibling(log.getFileName() + ".snapshot");
+    }
+
+    static void deleteRecursively(Path dir) throws IOException {
+        if (dir == null || !Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> {
+                try {
+                    Files.delete(path);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+    }
+
+    static synchronized void silenceConsole() {
+        if (savedOut == null) {
+            savedOut = System.out;
+            savedErr = System.err;
+            System.setOut(NULL_STREAM);
+            System.setErr(NULL_STREAM);
+        }
+    }
+
+    static synchronized void restoreConsole() {
+        if (savedOut != null) {
+            System.setOut(savedOut);
+            System.setErr(savedErr);
+            savedOut = null;
+            savedErr = null;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package tasktracker;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.time.ZoneOffset;
+import java.util.SplittableRandom;
+
+// Synthetic CSV logs in the format written by Logger. Every task runs the
+// given number of start/stop sessions, interleaved at random, with
+// describe and size records sprinkled in and a share of lines replaced by
+// the kinds of damage LogParser has to repair.
+//   java -cp bench/target/benchmarks.jar tasktracker.LogGenerator <out>
+//        [tasks] [sessions per task] [malformed ratio] [seed]
+public class LogGenerator {
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSSSS'Z'")
+                    .withZone(ZoneOffset.UTC);
+    private static final String[] SIZES = {"S", "M", "L", "XL"};
+
+    private final int tasks;
+    private final int sessionsPerTask;
+    private final double malformedRatio;
+    private final long seed;
+
+    public LogGenerator(int tasks, int sessionsPerTask,
+                        double malformedRatio, long seed) {
+        if (tasks <= 0 || sessionsPerTask <= 0) {
+            throw new IllegalArgumentException(
+                    "Task and session counts must be positive");
+        }
+        if (malformedRatio < 0 || malformedRatio >= 1) {
+            throw new IllegalArgumentException(
+                    "Malformed ratio must be in [0, 1)");
+        }
+        this.tasks = tasks;
+        this.sessionsPerTask = sessionsPerTask;
+        this.malformedRatio = malformedRatio;
+        this.seed = seed;
+    }
+
+    public static String taskName(int task) {
+        return "task" + task;
+    }
+
+    public void write(Path path) throws IOException {
+        try (BufferedWriter out = Files.newBufferedWriter(path)) {
+            write(out);
+        }
+    }
+
+    public void write(Writer out) throws IOException {
+        SplittableRandom random = new SplittableRandom(seed);
+        long time = Instant.parse("2020-01-01T00:00:00Z").getEpochSecond();
+        int[] remaining = new int[tasks];
+        boolean[] running = new boolean[tasks];
+        int[] live = new int[tasks];
+        for (int t = 0; t < tasks; t++) {
+            remaining[t] = sessionsPerTask * 2;
+            live[t] = t;
+        }
+        int liveCount = tasks;
+
+        while (liveCount > 0) {
+            time += random.nextInt(1, 4000);
+            int slot = random.nextInt(liveCount);
+            int task = live[slot];
+            String name = taskName(task);
+            double roll = random.nextDouble();
+
+            // Case: damaged line, which replay drops without side effects
+            if (roll < malformedRatio) {
+                out.write(malformed(random, time, name, running[task]));
+                continue;
+            }
+            // Case: metadata for a task that already exists
+            if (remaining[task] < sessionsPerTask * 2
+                    && roll < malformedRatio + 0.05) {
+                String size = random.nextInt(5) == 4 ? "null"
+                        : SIZES[random.nextInt(SIZES.length)];
+                line(out, stamp(random, time), name, "describe", "desc of " + name, size);
+                continue;
+            }
+            if (remaining[task] < sessionsPerTask * 2
+                    && roll < malformedRatio + 0.08) {
+                line(out, stamp(random, time), name, "size", "null",
+                        SIZES[random.nextInt(SIZES.length)]);
+                continue;
+            }
+
+            line(out, stamp(random, time), name, running[task] ? "stop" : "start",
+                    "null", "null");
+            running[task] = !running[task];
+            if (--remaining[task] == 0) {
+                live[slot] = live[--liveCount];
+            }
+        }
+    }
+
+    private static String malformed(SplittableRandom random, long time,
+                                    String name, boolean running) {
+        String stamp = stamp(random, time);
+        switch (random.nextInt(5)) {
+            case 0:
+                return stamp + "," + name + ",jump,null,null\n";
+            case 1:
+                return "notatime," + name + ",start,null,null\n";
+            case 2:
+                return stamp + "," + name + ",size,null,null\n";
+            case 3:
+                return stamp + ",never-started,stop,null,null\n";
+            default:
+                // Repeats the last command, an invalid transition
+                return stamp + "," + name + (running ? ",start" : ",stop")
+                        + ",null,null\n";
+        }
+    }
+
+    private static void line(Writer out, String stamp, String name,
+                             String command, String description,
+                             String size) throws IOException {
+        out.write(stamp);
+        out.write(',');
+        out.write(name);
+        out.write(',');
+        out.write(command);
+        out.write(',');
+        out.write(description);
+        out.write(',');
+        out.write(size);
+        out.write('\n');
+    }
+
+    private static String stamp(SplittableRandom random, long time) {
+        return TIME_FORMAT.format(Instant.ofEpochSecond(time,
+                random.nextInt(1_000_000) * 1000L));
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: LogGenerator <out> [tasks] "
+                    + "[sessions per task] [malformed ratio] [seed]");
+            System.exit(1);
+        }
+        int tasks = args.length > 1 ? Integer.parseInt(args[1]) : 1_000;
+        int sessions = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        double malformed = args.length > 3
+                ? Double.parseDouble(args[3]) : 0.0;
+        long seed = args.length > 4 ? Long.parseLong(args[4]) : 1;
+        new LogGenerator(tasks, sessions, malformed, seed)
+                .write(Paths.get(args[0]));
+    }
+}
@@ -0,0 +1,117 @@
+package tasktracker;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Replaying the log at startup. Without a snapshot every line is
+// tokenized and replayed; with one only the tail is. REPAIR pays for the
+// atomic rewrite when the log holds malformed lines, so each invocation
+// starts from an untouched copy. With sealed the whole history is rolled
+// over and folded first, leaving one summary record per task.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseBenchmark {
+    @Param({"1000"})
+    public int tasks;
+
+    @Param({"100"})
+    public int sessionsPerTask;
+
+    @Param({"0.0", "0.02"})
+    public double malformedRatio;
+
+    @Param({"REPORT", "REPAIR"})
+    public String validation;
+
+    @Param({"false", "true"})
+    public boolean parallel;
+
+    @Param({"false", "true"})
+    public boolean snapshot;
+
+    @Param({"false"})
+    public boolean sealed;
+
+    private ValidationMode mode;
+    private Path dir;
+    private Path pristine;
+    private Path log;
+    private Path snapshotCopy;
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+        BenchFixtures.silenceConsole();
+        mode = ValidationMode.valueOf(validation);
+        dir = Files.createTempDirectory("tm-parse");
+        pristine = BenchFixtures.generate(dir, tasks, sessionsPerTask,
+                malformedRatio);
+        log = dir.resolve("task-manager.log");
+        if (sealed) {
+            Files.copy(pristine, log);
+            LogSegments.seal(log);
+            LogSegments.fold(log);
+            Files.write(pristine, new byte[0]);
+        }
+        if (snapshot) {
+            // Snapshot covering the whole repaired log, so only the
+            // snapshot itself is read back
+            BenchFixtures.restore(pristine, log);
+            new LogParser(log.toString(), ValidationMode.REPAIR)
+                    .parseLogFile();
+            Files.copy(log, pristine, StandardCopyOption.REPLACE_EXISTING);
+            snapshotCopy = dir.resolve("pristine.snapshot");
+            Files.copy(BenchFixtures.snapshotOf(log), snapshotCopy);
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void reset() throws IOException {
+        BenchFixtures.restore(pristine, log);
+        if (snapshotCopy != null) {
+            Files.copy(snapshotCopy, BenchFixtures.snapshotOf(log));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanUp() throws IOException {
+        BenchFixtures.deleteRecursively(dir);
+        BenchFixtures.restoreConsole();
+    }
+
+    @Benchmark
+    public Map<String, Task> parse() {
+        return new LogParser(log.toString(), mode, parallel).parseLogFile();
+    }
+
+    // A single replay in a fresh JVM, as the command line sees it
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 0)
+    @Measurement(iterations = 1)
+    @Fork(5)
+    public Map<String, Task> coldJvm() {
+        return new LogParser(log.toString(), mode, parallel).parseLogFile();
+    }
+}
@@ -0,0 +1,85 @@
+package tasktracker;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Rename and delete of one task, which append tombstones, and compaction
+// of a log whose tombstones cover a tenth of its tasks. Each invocation
+// runs against a fresh copy of the log.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RewriteBenchmark {
+    @Param({"1000"})
+    public int tasks;
+
+    @Param({"10", "100"})
+    public int sessionsPerTask;
+
+    private Path dir;
+    private Path pristine;
+    private Path log;
+    private Logger logger;
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+        dir = Files.createTempDirectory("tm-rewrite");
+        pristine = BenchFixtures.generate(dir, tasks, sessionsPerTask, 0);
+        log = dir.resolve("task-manager.log");
+        logger = new Logger(pristine.toString());
+        for (int task = 0; task < tasks / 10; task++) {
+            if (task % 2 == 0) {
+                logger.renameTasks(LogGenerator.taskName(task),
+                        "renamed" + task);
+            } else {
+                logger.deleteTasks(LogGenerator.taskName(task));
+            }
+        }
+        BenchFixtures.restore(pristine, log);
+        logger = new Logger(log.toString());
+    }
+
+    @Setup(Level.Invocation)
+    public void reset() throws IOException {
+        BenchFixtures.restore(pristine, log);
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanUp() throws IOException {
+        BenchFixtures.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public void rename() {
+        logger.renameTasks(LogGenerator.taskName(0), "renamed");
+    }
+
+    @Benchmark
+    public void delete() {
+        logger.deleteTasks(LogGenerator.taskName(0));
+    }
+
+    @Benchmark
+    public void compact() {
+        logger.compact();
+    }
+}
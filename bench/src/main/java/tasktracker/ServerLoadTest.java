@@ -0,0 +1,144 @@
+package tasktracker;
+
+import java.io.IOException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+// Many clients at once against a daemon serving a fresh log in this JVM.
+// Every client starts and stops its own task over a new connection per
+// request, as the command line does, and the run reports throughput and
+// request latency. mode is concurrent (virtual threads and per-task
+// locks) or sequential, to compare the two.
+//   java -cp bench/target/benchmarks.jar tasktracker.ServerLoadTest
+//        [clients] [requests per client] [concurrent|sequential]
+//        [durability]
+public class ServerLoadTest {
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 1_000;
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        String mode = args.length > 2 ? args[2] : "concurrent";
+        String durability = args.length > 3 ? args[3] : "none";
+        if (clients <= 0 || requests <= 0) {
+            throw new IllegalArgumentException(
+                    "Client and request counts must be positive");
+        }
+        if (!mode.equals("concurrent") && !mode.equals("sequential")) {
+            throw new IllegalArgumentException(
+                    "Mode must be concurrent or sequential");
+        }
+
+        Path dir = Files.createTempDirectory("tm-load");
+        Path log = dir.resolve("task-manager.log");
+        Path socket = TaskDaemon.socketPath(log.toString());
+        List<String> launch = new ArrayList<>(List.of("--log=" + log,
+                "--durability=" + durability));
+        if (mode.equals("concurrent")) {
+            launch.add("--concurrent");
+        }
+        launch.add("serve");
+        Thread daemon = new Thread(() -> TM.main(
+                launch.toArray(new String[0])), "tm-daemon");
+        daemon.start();
+        while (!DaemonClient.isRunning(socket)) {
+            Thread.sleep(10);
+        }
+
+        try {
+            run(socket, clients, requests, mode, durability);
+            long lines;
+            try (Stream<String> logLines = Files.lines(log)) {
+                lines = logLines.count();
+            }
+            System.out.println("Log lines:    " + lines + " of "
+                    + (long) clients * requests);
+        } finally {
+            request(socket, "shutdown");
+            daemon.join();
+            BenchFixtures.deleteRecursively(dir);
+        }
+    }
+
+    private static void run(Path socket, int clients, int requests,
+                            String mode, String durability)
+            throws Exception {
+        long[][] latencies = new long[clients][requests];
+        AtomicLong errors = new AtomicLong();
+        CountDownLatch ready = new CountDownLatch(clients);
+        CountDownLatch go = new CountDownLatch(1);
+        ExecutorService threads = TaskDaemon.requestThreads();
+        List<Future<?>> running = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+            String task = "client" + c;
+            long[] times = latencies[c];
+            running.add(threads.submit(() -> {
+                ready.countDown();
+                go.await();
+                for (int r = 0; r < requests; r++) {
+                    long begin = System.nanoTime();
+                    try {
+                        byte[][] reply = request(socket,
+                                r % 2 == 0 ? "start" : "stop", task);
+                        if (reply[1].length > 0) {
+                            errors.incrementAndGet();
+                        }
+                    } catch (IOException e) {
+                        // Case: refused or dropped, the CLI would run the
+                        // command itself
+                        errors.incrementAndGet();
+                    }
+                    times[r] = System.nanoTime() - begin;
+                }
+                return null;
+            }));
+        }
+        ready.await();
+        long begin = System.nanoTime();
+        go.countDown();
+        for (Future<?> client : running) {
+            client.get();
+        }
+        long elapsed = System.nanoTime() - begin;
+        threads.shutdown();
+
+        long[] all = Arrays.stream(latencies).flatMapToLong(Arrays::stream)
+                .sorted().toArray();
+        System.out.println("Mode:         " + mode + ", durability "
+                + durability);
+        System.out.println("Clients:      " + clients + " x " + requests
+                + " requests");
+        System.out.println("Errors:       " + errors.get());
+        System.out.printf(Locale.ROOT, "Throughput:   %.0f requests/s%n",
+                all.length / (elapsed / 1e9));
+        System.out.println("Latency p50:  " + millis(percentile(all, 0.50)));
+        System.out.println("Latency p99:  " + millis(percentile(all, 0.99)));
+        System.out.println("Latency max:  " + millis(all[all.length - 1]));
+    }
+
+    private static byte[][] request(Path socket, String... args)
+            throws IOException {
+        try (SocketChannel channel = SocketChannel.open(
+                UnixDomainSocketAddress.of(socket))) {
+            return DaemonClient.exchange(channel, args);
+        }
+    }
+
+    private static long percentile(long[] sorted, double quantile) {
+        int rank = (int) Math.ceil(quantile * sorted.length) - 1;
+        return sorted[Math.max(0, rank)];
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.2f ms", nanos / 1e6);
+    }
+}
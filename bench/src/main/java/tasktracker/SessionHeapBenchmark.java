@@ -0,0 +1,94 @@
+package tasktracker;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Stack;
+
+// Heap held by session history: one TimeEntry object per session in a
+// Stack (the previous layout) against the columnar storage in Task.
+//   java -cp bench/target/benchmarks.jar tasktracker.SessionHeapBenchmark
+//        [tasks] [sessions per task]
+public class SessionHeapBenchmark {
+    public static void main(String[] args) {
+        int tasks = args.length > 0 ? Integer.parseInt(args[0]) : 2_000;
+        int sessions = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        long base = Instant.parse("2020-01-01T00:00:00Z").getEpochSecond();
+
+        long before = usedHeap();
+        List<Stack<ObjectEntry>> objects = new ArrayList<>(tasks);
+        for (int t = 0; t < tasks; t++) {
+            Stack<ObjectEntry> entries = new Stack<>();
+            for (int s = 0; s < sessions; s++) {
+                long start = base + s * 7200L + t;
+                ObjectEntry entry = new ObjectEntry(
+                        Instant.ofEpochSecond(start));
+                entry.setStop(Instant.ofEpochSecond(start + 3600));
+                entries.push(entry);
+            }
+            objects.add(entries);
+        }
+        long objectBytes = usedHeap() - before;
+        report("object per session", objectBytes, tasks, sessions,
+                objects.size());
+        objects = null;
+
+        before = usedHeap();
+        List<Task> columnar = new ArrayList<>(tasks);
+        for (int t = 0; t < tasks; t++) {
+            Task task = new Task(base + t, "task" + t);
+            for (int s = 0; s < sessions; s++) {
+                long start = base + s * 7200L + t;
+                if (s > 0) {
+                    task.upsertTimeEntry(start, "start");
+                }
+                task.upsertTimeEntry(start + 3600, "stop");
+            }
+            columnar.add(task);
+        }
+        long columnarBytes = usedHeap() - before;
+        report("columnar", columnarBytes, tasks, sessions, columnar.size());
+
+        System.out.printf("columnar / object per session: %.2f%n",
+                (double) columnarBytes / objectBytes);
+    }
+
+    private static void report(String layout, long bytes, int tasks,
+                               int sessions, int retained) {
+        System.out.printf("%-20s %,14d bytes  %6.1f bytes/session  "
+                        + "(%d tasks retained)%n", layout, bytes,
+                (double) bytes / ((long) tasks * sessions), retained);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // The previous per-session layout
+    private static class ObjectEntry {
+        private final Instant start;
+        private Instant stop;
+
+        ObjectEntry(Instant start) {
+            this.start = start;
+        }
+
+        void setStop(Instant stop) {
+            this.stop = stop;
+        }
+
+        Duration getDuration() {
+            return Duration.between(start, stop);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package tasktracker;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// A summary in a new process, the way a shell prompt or editor hook calls
+// it: firstByte stops the clock at the first byte of output, exit when the
+// process is gone. source compiles TM.java first (run from the repository
+// root), jar runs the compiled classes and cds adds an AppCDS archive
+// dumped by StartupTraining, as bin/tm does.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StartupBenchmark {
+    @Param({"jar", "cds", "source"})
+    public String launch;
+
+    @Param({"100"})
+    public int tasks;
+
+    private Path dir;
+    private List<String> command;
+    private Process running;
+
+    @Setup(Level.Trial)
+    public void prepare() throws IOException, InterruptedException,
+            URISyntaxException {
+        dir = Files.createTempDirectory("tm-startup");
+        Path log = dir.resolve("task-manager.log");
+        new LogGenerator(tasks, 10, 0.0, 1).write(log);
+        String java = Paths.get(System.getProperty("java.home"), "bin",
+                "java").toString();
+        String classPath = Paths.get(TM.class.getProtectionDomain()
+                .getCodeSource().getLocation().toURI()).toString();
+
+        command = new ArrayList<>(List.of(java));
+        switch (launch) {
+            case "jar":
+                command.addAll(List.of("-cp", classPath, "tasktracker.TM"));
+                break;
+            case "cds":
+                Path archive = dir.resolve("tm.jsa");
+                run(List.of(java, "-XX:ArchiveClassesAtExit=" + archive,
+                        "-cp", classPath, "tasktracker.StartupTraining"));
+                command.addAll(List.of("-XX:SharedArchiveFile=" + archive,
+                        "-cp", classPath, "tasktracker.TM"));
+                break;
+            case "source":
+                Path source = Paths.get("TM.java").toAbsolutePath();
+                if (!Files.exists(source)) {
+                    throw new IllegalStateException("No " + source
+                            + ", run the benchmarks from the repository root");
+                }
+                command.add(source.toString());
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown launch: "
+                        + launch);
+        }
+        command.addAll(List.of("--no-daemon", "--log=" + log, "summary",
+                LogGenerator.taskName(0)));
+        // Leaves the snapshot behind, as after any earlier command
+        run(command);
+    }
+
+    @TearDown(Level.Invocation)
+    public void reap() throws IOException, InterruptedException {
+        if (running != null) {
+            try (InputStream out = running.getInputStream()) {
+                out.transferTo(OutputStream.nullOutputStream());
+            }
+            running.waitFor();
+            running = null;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanUp() throws IOException {
+        BenchFixtures.deleteRecursively(dir);
+    }
+
+    // The rest of the output is drained outside the measurement
+    @Benchmark
+    public int firstByte() throws IOException {
+        running = start(command);
+        return running.getInputStream().read();
+    }
+
+    @Benchmark
+    public int exit() throws IOException, InterruptedException {
+        return run(command);
+    }
+
+    private static Process start(List<String> command) throws IOException {
+        return new ProcessBuilder(command)
+                .redirectError(ProcessBuilder.Redirect.DISCARD)
+                .start();
+    }
+
+    private static int run(List<String> command) throws IOException,
+            InterruptedException {
+        return new ProcessBuilder(command)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.DISCARD)
+                .start().waitFor();
+    }
+}
@@ -0,0 +1,89 @@
+package tasktracker;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Rendering summaries over tasks that are already in memory, leaving the
+// replay out of the measurement
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SummaryBenchmark {
+    @Param({"100", "1000", "10000"})
+    public int tasks;
+
+    @Param({"20"})
+    public int sessionsPerTask;
+
+    private Path dir;
+    private TaskExecutor executor;
+    // Generated histories start on 2020-01-01
+    private final SummaryWindow month =
+            SummaryWindow.parse("2020-02-01", "2020-02-29", null);
+    private final SummaryWindow byWeek =
+            SummaryWindow.parse(null, null, "week");
+
+    @Setup(Level.Trial)
+    public void load() throws IOException {
+        BenchFixtures.silenceConsole();
+        dir = Files.createTempDirectory("tm-summary");
+        Path log = BenchFixtures.generate(dir, tasks, sessionsPerTask, 0);
+        Map<String, Task> taskMap = new LogParser(log.toString(),
+                ValidationMode.REPORT).parseLogFile();
+        executor = new TaskExecutor(new Logger(log.toString()),
+                () -> taskMap);
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanUp() throws IOException {
+        BenchFixtures.deleteRecursively(dir);
+        BenchFixtures.restoreConsole();
+    }
+
+    @Benchmark
+    public void summaryAll() throws IllegalCommandException {
+        executor.summary(null);
+    }
+
+    @Benchmark
+    public void summaryBySize() throws IllegalCommandException {
+        executor.summary("M");
+    }
+
+    @Benchmark
+    public void summaryMonth() throws IllegalCommandException {
+        executor.summary(null, month);
+    }
+
+    @Benchmark
+    public void summaryByWeek() throws IllegalCommandException {
+        executor.summary(null, byWeek);
+    }
+
+    // Generated descriptions read "desc of <task>", so this matches one
+    @Benchmark
+    public void search() {
+        executor.search(LogGenerator.taskName(tasks / 2),
+                SummaryOptions.DEFAULT);
+    }
+}
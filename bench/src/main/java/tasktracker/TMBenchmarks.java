@@ -0,0 +1,36 @@
+package tasktracker;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Runs the benchmarks with the GC profiler attached, so every result
+// carries its allocation rate (gc.alloc.rate.norm is bytes per operation).
+// Accepts the usual JMH options, e.g. a benchmark regex or -p tasks=500.
+//   java -jar bench/target/benchmarks.jar [jmh options]
+public class TMBenchmarks {
+    public static void main(String[] args) throws IOException,
+            CommandLineOptionException, RunnerException {
+        CommandLineOptions cmdOptions = new CommandLineOptions(args);
+        if (cmdOptions.shouldHelp() || cmdOptions.shouldList()
+                || cmdOptions.shouldListProfilers()) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+        OptionsBuilder options = new OptionsBuilder();
+        options.parent(cmdOptions);
+        options.addProfiler(GCProfiler.class);
+        if (!cmdOptions.getResult().hasValue()
+                && !cmdOptions.getResultFormat().hasValue()) {
+            options.resultFormat(ResultFormatType.JSON);
+            options.result("jmh-result.json");
+        }
+        new Runner(options.build()).run();
+    }
+}
@@ -0,0 +1,84 @@
+package tasktracker;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class CompactTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void tombstonesReplayTheSameBeforeAndAfterCompact() throws IOException {
+        Path log = dir.resolve("task-manager.log");
+        Files.writeString(log, String.join("",
+                TestLogs.line(0, "a", "start", "null", "null"),
+                TestLogs.line(60, "a", "stop", "null", "null"),
+                TestLogs.line(70, "b", "start", "null", "null"),
+                TestLogs.line(100, "b", "stop", "null", "null"),
+                TestLogs.line(110, "a", "describe", "first", "M"),
+                // a lives on as c, then a is a new task
+                TestLogs.line(120, "a", "rename", "c", "null"),
+                TestLogs.line(130, "c", "start", "null", "null"),
+                TestLogs.line(190, "c", "stop", "null", "null"),
+                TestLogs.line(200, "a", "start", "null", "null"),
+                TestLogs.line(205, "a", "stop", "null", "null"),
+                // b is gone, a later b starts from nothing
+                TestLogs.line(210, "b", "delete", "null", "null"),
+                TestLogs.line(220, "b", "start", "null", "null"),
+                TestLogs.line(250, "b", "stop", "null", "null"),
+                // Rejected: the target exists, the source does not
+                TestLogs.line(260, "c", "rename", "a", "null"),
+                TestLogs.line(270, "ghost", "rename", "d", "null"),
+                TestLogs.line(280, "ghost", "delete", "null", "null"),
+                // d is renamed and then deleted under its new name
+                TestLogs.line(290, "d", "start", "null", "null"),
+                TestLogs.line(300, "d", "rename", "e", "null"),
+                TestLogs.line(310, "e", "stop", "null", "null"),
+                TestLogs.line(320, "e", "delete", "null", "null"),
+                TestLogs.line(330, "c", "start", "null", "null")));
+
+        Map<String, String> replayed = TestLogs.describe(
+                new LogParser(log.toString(), ValidationMode.REPORT)
+                        .parseLogFile());
+        new Logger(log.toString()).compact();
+        LogSnapshot.invalidate(log);
+        Map<String, String> compacted = TestLogs.describe(
+                new LogParser(log.toString(), ValidationMode.REPORT)
+                        .parseLogFile());
+
+        assertEquals(List.of("a", "b", "c"), List.copyOf(replayed.keySet()));
+        assertEquals(replayed, compacted);
+        String rewritten = Files.readString(log);
+        assertFalse(rewritten.contains(",rename,"), rewritten);
+        assertFalse(rewritten.contains(",delete,"), rewritten);
+        assertEquals(10, rewritten.lines().count(), rewritten);
+    }
+
+    @Test
+    void compactKeepsWhatARandomLogReplaysTo() throws IOException {
+        Path log = dir.resolve("task-manager.log");
+        TestLogs.writeRandom(log, 20_000, 200, 11);
+
+        Map<String, String> replayed = TestLogs.describe(
+                new LogParser(log.toString(), ValidationMode.REPORT)
+                        .parseLogFile());
+        long before = Files.size(log);
+        new Logger(log.toString()).compact();
+        LogSnapshot.invalidate(log);
+        Map<String, String> compacted = TestLogs.describe(
+                new LogParser(log.toString(), ValidationMode.REPORT)
+                        .parseLogFile());
+
+        assertTrue(Files.size(log) < before);
+        assertEquals(replayed, compacted);
+    }
+}
@@ -0,0 +1,56 @@
+package tasktracker;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class LogSnapshotTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void descriptionsOver64KbAreSnapshotted() throws IOException {
+        Path log = dir.resolve("task-manager.log");
+        String description = "x".repeat(70_000);
+        Files.write(log, ("2024-01-01T00:00:00Z,deploy,start,null,null\n"
+                + "2024-01-01T01:00:00Z,deploy,describe," + description
+                + ",M\n").getBytes(StandardCharsets.UTF_8));
+
+        new LogParser(log.toString(), ValidationMode.REPORT).parseLogFile();
+        LogSnapshot snapshot = LogSnapshot.load(log);
+
+        assertNotNull(snapshot);
+        assertEquals(Files.size(log), snapshot.getOffset());
+        Task task = snapshot.getTaskMap().get("deploy");
+        assertEquals(description, task.getDescription());
+        assertEquals("M", task.getSize());
+    }
+
+    @Test
+    void aReplacedLogDiscardsTheSnapshot() throws IOException {
+        Path log = dir.resolve("task-manager.log");
+        Files.writeString(log, "2024-01-01T00:00:00Z,deploy,start,null,null\n"
+                + "2024-01-01T01:00:00Z,deploy,stop,null,null\n");
+        new LogParser(log.toString(), ValidationMode.REPORT).parseLogFile();
+
+        // Same length, different task
+        Files.writeString(log, "2024-01-01T00:00:00Z,review,start,null,null\n"
+                + "2024-01-01T01:00:00Z,review,stop,null,null\n");
+        assertNull(LogSnapshot.load(log));
+        Map<String, Task> tasks = new LogParser(log.toString(),
+                ValidationMode.REPORT).parseLogFile();
+
+        assertEquals(Set.of("review"), tasks.keySet());
+        assertEquals(3_600,
+                tasks.get("review").getTotalDuration().getSeconds());
+    }
+}
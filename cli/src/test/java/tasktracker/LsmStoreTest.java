@@ -0,0 +1,81 @@
+package tasktracker;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class LsmStoreTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void aTruncatedFrameIsDroppedAndOverwritten() throws IOException {
+        long kept = writeTwoFrames();
+        Path wal = dir.resolve("wal-0.log");
+        byte[] bytes = Files.readAllBytes(wal);
+        // Case: the crash hit in the middle of the second frame's payload
+        Files.write(wal, Arrays.copyOf(bytes,
+                (int) (kept + (bytes.length - kept) / 2)));
+
+        assertRecovers(kept);
+    }
+
+    @Test
+    void aFrameFailingItsChecksumIsDroppedAndOverwritten()
+            throws IOException {
+        long kept = writeTwoFrames();
+        Path wal = dir.resolve("wal-0.log");
+        byte[] bytes = Files.readAllBytes(wal);
+        // Case: the second frame's length made it to disk, its bytes did not
+        bytes[bytes.length - 1] ^= 0x55;
+        Files.write(wal, bytes);
+
+        assertRecovers(kept);
+    }
+
+    // Writes k1 and k2 as separate frames, returns the first frame's end
+    private long writeTwoFrames() throws IOException {
+        LsmStore store = new LsmStore(dir);
+        store.refresh();
+        store.put(bytes("k1"), bytes("first"));
+        store.commit();
+        store.write();
+        long kept = Files.size(dir.resolve("wal-0.log"));
+        store.put(bytes("k2"), bytes("second"));
+        store.commit();
+        store.write();
+        return kept;
+    }
+
+    private void assertRecovers(long kept) throws IOException {
+        LsmStore recovered = new LsmStore(dir);
+        recovered.refresh();
+        assertArrayEquals(bytes("first"), recovered.get(bytes("k1")));
+        assertNull(recovered.get(bytes("k2")));
+
+        recovered.put(bytes("k3"), bytes("third"));
+        recovered.commit();
+        recovered.write();
+        LsmStore reopened = new LsmStore(dir);
+        reopened.refresh();
+
+        assertArrayEquals(bytes("first"), reopened.get(bytes("k1")));
+        assertNull(reopened.get(bytes("k2")));
+        assertArrayEquals(bytes("third"), reopened.get(bytes("k3")));
+        // 8 bytes of frame header, 6 of entry header, key and value
+        assertEquals(kept + 8 + 6 + 2 + 5,
+                Files.size(dir.resolve("wal-0.log")));
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
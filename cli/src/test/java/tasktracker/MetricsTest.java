@@ -0,0 +1,59 @@
+package tasktracker;
+
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.Test;
+
+class MetricsTest {
+    @Test
+    void concurrentCommandsCountOnlyTheirOwnWork() throws Exception {
+        int commands = 8;
+        CountDownLatch started = new CountDownLatch(commands);
+        ExecutorService threads = Executors.newFixedThreadPool(commands);
+        try {
+            List<Future<String>> stats = new ArrayList<>();
+            for (int c = 1; c <= commands; c++) {
+                long lines = c;
+                stats.add(threads.submit(() -> {
+                    Metrics.CommandTimer timer = Metrics.command(
+                            new String[]{"summary"});
+                    started.countDown();
+                    started.await();
+                    Metrics.add(Metrics.Counter.LINES_PARSED, lines);
+                    return timer.stats(false);
+                }));
+            }
+            for (int c = 1; c <= commands; c++) {
+                assertTrue(stats.get(c - 1).get().contains(
+                        "  lines parsed " + c + "\n"),
+                        stats.get(c - 1).get());
+            }
+        } finally {
+            threads.shutdown();
+        }
+    }
+
+    @Test
+    void workOnOtherThreadsCountsTowardsItsCommand() throws Exception {
+        Metrics.CommandTimer timer = Metrics.command(new String[]{"start"});
+        Metrics.Scope scope = Metrics.scope();
+        Thread worker = new Thread(() -> Metrics.within(scope,
+                () -> Metrics.add(Metrics.Counter.BYTES_READ, 100)));
+        worker.start();
+        worker.join();
+        Metrics.withinAll(List.of(scope), () -> Metrics.add(
+                Metrics.Counter.BYTES_WRITTEN, 40));
+        String stats = timer.stats(false);
+
+        assertTrue(stats.contains("  bytes read 100\n"), stats);
+        assertTrue(stats.contains("  bytes written 40\n"), stats);
+        assertNull(Metrics.scope());
+    }
+}
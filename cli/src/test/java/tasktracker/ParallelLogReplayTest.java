@@ -0,0 +1,74 @@
+package tasktracker;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ParallelLogReplayTest {
+    // Over 1MB a chunk, so the parallel replay splits the log
+    private static final int LINES = 100_000;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void parallelReplayMatchesSequential() throws IOException {
+        Path sequential = dir.resolve("sequential.log");
+        Path parallel = dir.resolve("parallel.log");
+        TestLogs.writeRandom(sequential, LINES, 500, 4);
+        Files.copy(sequential, parallel);
+        assertTrue(Files.size(parallel) > 3 << 20);
+
+        Map<String, String> expected = quietly(() -> TestLogs.describe(
+                new LogParser(sequential.toString(), ValidationMode.REPORT,
+                        false).parseLogFile()));
+        Map<String, String> actual = quietly(() -> TestLogs.describe(
+                new LogParser(parallel.toString(), ValidationMode.REPORT,
+                        true).parseLogFile()));
+
+        assertEquals(expected.size(), actual.size());
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    void parallelRepairRemovesTheSameLines() throws IOException {
+        Path sequential = dir.resolve("sequential.log");
+        Path parallel = dir.resolve("parallel.log");
+        TestLogs.writeRandom(sequential, LINES, 500, 5);
+        Files.copy(sequential, parallel);
+        long before = Files.size(sequential);
+
+        quietly(() -> new LogParser(sequential.toString(),
+                ValidationMode.REPAIR, false).parseLogFile());
+        quietly(() -> new LogParser(parallel.toString(),
+                ValidationMode.REPAIR, true).parseLogFile());
+
+        assertTrue(Files.size(sequential) < before);
+        assertArrayEquals(Files.readAllBytes(sequential),
+                Files.readAllBytes(parallel));
+    }
+
+    // Rejected lines are reported on stderr, thousands of them here
+    private static <T> T quietly(IOSupplier<T> replay) throws IOException {
+        PrintStream err = System.err;
+        System.setErr(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            return replay.get();
+        } finally {
+            System.setErr(err);
+        }
+    }
+
+    private interface IOSupplier<T> {
+        T get() throws IOException;
+    }
+}
@@ -0,0 +1,68 @@
+package tasktracker;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import org.junit.jupiter.api.Test;
+
+class SessionSketchTest {
+    private static final long HALF_HOUR = 1_800;
+    private static final long TWO_HOURS = 7_200;
+    private static final long FIFTY_TWO_HOURS = 187_200;
+
+    @Test
+    void highPercentilesOfTwoSessionsReadTheLongerOne() {
+        SessionSketch sketch = sketch(HALF_HOUR, FIFTY_TWO_HOURS);
+
+        assertNear(HALF_HOUR, sketch.quantile(0.5));
+        assertNear(FIFTY_TWO_HOURS, sketch.quantile(0.9));
+        assertNear(FIFTY_TWO_HOURS, sketch.quantile(0.99));
+    }
+
+    @Test
+    void percentilesUseTheNearestRank() {
+        SessionSketch sketch = sketch(HALF_HOUR, TWO_HOURS, FIFTY_TWO_HOURS);
+
+        assertNear(TWO_HOURS, sketch.quantile(0.5));
+        assertNear(FIFTY_TWO_HOURS, sketch.quantile(0.9));
+        assertNear(FIFTY_TWO_HOURS, sketch.quantile(0.99));
+        assertNear(HALF_HOUR, sketch.quantile(0));
+    }
+
+    @Test
+    void clampedPercentilesStayWithinTheSessions() {
+        SessionSketch sketch = sketch(HALF_HOUR, HALF_HOUR + 1);
+
+        for (double q : new double[] {0, 0.5, 0.9, 0.99, 1}) {
+            long seconds = sketch.quantile(q, HALF_HOUR, HALF_HOUR + 1)
+                    .getSeconds();
+            assertTrue(seconds >= HALF_HOUR && seconds <= HALF_HOUR + 1,
+                    "p" + q + " was " + seconds + "s");
+        }
+    }
+
+    @Test
+    void zeroLengthSessionsCountTowardsTheRank() {
+        SessionSketch sketch = sketch(0, 0, 0, TWO_HOURS);
+
+        assertEquals(Duration.ZERO, sketch.quantile(0.5));
+        assertNear(TWO_HOURS, sketch.quantile(0.99));
+        assertEquals(Duration.ZERO, new SessionSketch().quantile(0.99));
+    }
+
+    private static SessionSketch sketch(long... seconds) {
+        SessionSketch sketch = new SessionSketch();
+        for (long session : seconds) {
+            sketch.add(session);
+        }
+        return sketch;
+    }
+
+    private static void assertNear(long expectedSeconds, Duration actual) {
+        double error = Math.abs(actual.getSeconds() - expectedSeconds)
+                / (double) expectedSeconds;
+        assertTrue(error <= SessionSketch.RELATIVE_ACCURACY,
+                "expected about " + expectedSeconds + "s, was " + actual);
+    }
+}
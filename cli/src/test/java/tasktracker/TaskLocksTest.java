@@ -0,0 +1,67 @@
+package tasktracker;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class TaskLocksTest {
+    private static final int TASKS = 32;
+    private static final int ROUNDS = 50;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void concurrentStartsAndStopsLoseNoRecords() throws Exception {
+        Path log = dir.resolve("task-manager.log");
+        // Fewer stripes than tasks, so some tasks share a stripe
+        TaskExecutor executor = new TaskExecutor(new OrderedLogger(
+                new Logger(log.toString(), true, Durability.NONE), () -> {}),
+                new LogParser(log.toString(), ValidationMode.REPAIR), true,
+                new TaskLocks(8));
+
+        CountDownLatch ready = new CountDownLatch(TASKS);
+        ExecutorService threads = Executors.newFixedThreadPool(TASKS);
+        try {
+            List<Future<?>> done = new ArrayList<>();
+            for (int t = 0; t < TASKS; t++) {
+                String name = "task" + t;
+                done.add(threads.submit(() -> {
+                    ready.countDown();
+                    ready.await();
+                    for (int round = 0; round < ROUNDS; round++) {
+                        executor.startTask(name);
+                        executor.stopTask(name);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> task : done) {
+                task.get();
+            }
+        } finally {
+            threads.shutdown();
+        }
+
+        assertEquals(2 * TASKS * ROUNDS, Files.readAllLines(log).size());
+        Map<String, Task> replayed = new LogParser(log.toString(),
+                ValidationMode.REPORT).parseLogFile();
+        assertEquals(TASKS, replayed.size());
+        for (int t = 0; t < TASKS; t++) {
+            Task task = replayed.get("task" + t);
+            assertEquals(ROUNDS, task.getClosedSessions(), task.getName());
+            assertTrue(task.lastEntryStopped(), task.getName());
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package tasktracker;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+// Logs for the tests, and a comparable form of the tasks replayed from them
+final class TestLogs {
+    private static final long FIRST_SECOND = 1_704_067_200L;
+
+    private TestLogs() {}
+
+    static String line(long second, String name, String command,
+                       String description, String size) {
+        return Instant.ofEpochSecond(FIRST_SECOND + second) + "," + name
+                + "," + command + "," + description + "," + size + "\n";
+    }
+
+    // Sessions, descriptions and sizes over tasks that are renamed and
+    // deleted along the way, with a share of malformed lines and of
+    // records the replay rejects
+    static void writeRandom(Path log, int lines, int tasks, long seed)
+            throws IOException {
+        Random random = new Random(seed);
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < tasks; i++) {
+            names.add("task" + i);
+        }
+        Set<String> running = new HashSet<>();
+        int renamed = 0;
+        try (BufferedWriter out = Files.newBufferedWriter(log)) {
+            for (long second = 0; second < lines; second++) {
+                String name = names.get(random.nextInt(names.size()));
+                int roll = random.nextInt(100);
+                if (roll < 2) {
+                    out.write("not,a,log line\n");
+                } else if (roll < 4) {
+                    out.write(line(second, name, "describe", "notes on "
+                            + name, Task.SIZES.get(random.nextInt(4))));
+                } else if (roll < 5) {
+                    out.write(line(second, name, "size", "null",
+                            Task.SIZES.get(random.nextInt(4))));
+                } else if (roll < 6) {
+                    String newName = "renamed" + renamed++;
+                    out.write(line(second, name, "rename", newName, "null"));
+                    names.set(names.indexOf(name), newName);
+                    if (running.remove(name)) {
+                        running.add(newName);
+                    }
+                } else if (roll < 7) {
+                    out.write(line(second, name, "delete", "null", "null"));
+                    running.remove(name);
+                } else if (roll < 8) {
+                    // Rejected: a stop without a start or a second start
+                    out.write(line(second, name,
+                            running.contains(name) ? "start" : "stop",
+                            "null", "null"));
+                } else if (running.remove(name)) {
+                    out.write(line(second, name, "stop", "null", "null"));
+                } else {
+                    running.add(name);
+                    out.write(line(second, name, "start", "null", "null"));
+                }
+            }
+        }
+    }
+
+    // Everything summary reads from each task, keyed by name
+    static Map<String, String> describe(Map<String, Task> tasks) {
+        Map<String, String> described = new TreeMap<>();
+        for (Task task : tasks.values()) {
+            StringBuilder out = new StringBuilder();
+            out.append(task.getDescription()).append('|')
+                    .append(task.getSize()).append('|')
+                    .append(task.getTotalDuration()).append('|')
+                    .append(task.getClosedSessions()).append('|')
+                    .append(task.getMinTimeEntry()).append('|')
+                    .append(task.getMaxTimeEntry()).append('|')
+                    .append(task.lastEntryStopped());
+            TimeEntries entries = task.getTimeEntries();
+            for (int i = 0; i < entries.size(); i++) {
+                out.append('|').append(entries.getStart(i)).append('-')
+                        .append(entries.getStop(i));
+            }
+            described.put(task.getName(), out.toString());
+        }
+        return described;
+    }
+}